@@ -5,31 +5,35 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Handler;
-import android.os.ParcelUuid;
 import android.util.Log;
 
+import net.theneophyte.sunstone.app.lighting.FrameSink;
+import net.theneophyte.sunstone.app.lighting.LampChannel;
+import net.theneophyte.sunstone.app.protocol.BatchWriteFuture;
+import net.theneophyte.sunstone.app.protocol.LinkMetrics;
+import net.theneophyte.sunstone.app.protocol.WriteFuture;
+
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Class that handles the BLE connection to the Sunstone light
  *
  * Created by Matt Sutter on 7/30/15.
  */
-public class BleSunstone extends BluetoothGattCallback{
+public class BleSunstone extends BluetoothGattCallback implements FrameSink {
 
 //    public static final String SUNSTONE_DEVICE_NAME = "Sunstone";
 
@@ -44,32 +48,106 @@ public class BleSunstone extends BluetoothGattCallback{
     public static final UUID SUNSTONE_GREEN_CHAR_UUID   = UUID.fromString("1BA40007-582C-46E8-9CC3-159C8D6F8BBB");
     public static final UUID SUNSTONE_BLUE_CHAR_UUID    = UUID.fromString("1BA40008-582C-46E8-9CC3-159C8D6F8BBB");
 
-    // BLE scanning timeout
-    private static final int SCAN_PERIOD = 10000;
+    // Standard Client Characteristic Configuration descriptor, used to turn on notifications
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIG_UUID = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    // Optional characteristic holding all channel values, one byte each in LampChannel order
+    public static final UUID SUNSTONE_FRAME_CHAR_UUID   = UUID.fromString("1BA40009-582C-46E8-9CC3-159C8D6F8BBB");
+
+    // Time to wait for a direct connection to the last known lamp before falling back to a scan
+    private static final int DIRECT_CONNECT_TIMEOUT = 3000;
+
+    // Time to wait for the services of a connected lamp before giving up on the connection
+    private static final int DISCOVERY_TIMEOUT = 10000;
+
+    // ATT MTU every connection starts out with
+    private static final int DEFAULT_MTU = 23;
+
+    // Bytes of every ATT write taken up by the opcode and handle
+    private static final int ATT_WRITE_HEADER = 3;
+
+    // Quiet time after an interaction before the connection interval is relaxed to balanced
+    private static final long INTERACTION_QUIET_MILLIS = 2000;
+
+    // Further quiet time before the connection drops to low power
+    private static final long LOW_POWER_QUIET_MILLIS = 60000;
+
+    // Preferences remembering the last lamp, so cold starts don't have to scan
+    private static final String PREFS_NAME = "sunstone_lamp";
+    private static final String PREF_LAMP_ADDRESS = "lamp_address";
+    private static final String PREF_LAMP_MTU = "lamp_mtu";
+
+    // Time to wait for a write to be acknowledged before retrying it
+    private static final long GATT_WRITE_TIMEOUT_MILLIS = 500;
+
+    // Number of retries for user writes; animation frames are superseded by the next frame instead
+    private static final int GATT_WRITE_RETRIES = 2;
 
     private final Context mContext;
     private final BluetoothAdapter mBluetoothAdapter;
+    private final SharedPreferences mPrefs;
     private BluetoothGatt mGatt;
     private String mSunstoneBleAddr = null;
+
+    // True for lamps that only ever connect to one address, see LampRegistry
+    private final boolean mFixedAddress;
     private final BluetoothGattCallback mGattCallback = this;
-    private ScanCallback mLeScanCallback = new SunstoneScanCallback();
-    private BluetoothGattCharacteristic
-            whiteChar = null,
-            colorChar = null,
-            warmChar = null,
-            coolChar = null,
-            redChar = null,
-            greenChar = null,
-            blueChar = null;
-
-    // Queues for characteristic read (synchronous)
-    private Queue<BluetoothGattCharacteristic> readQueue, writeQueue;
-
-    private final List<ScanFilter> mLeScanFilterList;
-    private final ScanSettings mUartLeScanSettings;
+    private final SunstoneScanner mScanner;
+
+    // Channel Characteristics and cached values, indexed by channel id
+    private final ChannelRegistry mChannels;
+
+    // Only newer firmware has the packed frame characteristic
+    private BluetoothGattCharacteristic frameChar = null;
+
+    // Every GATT operation on the connection goes through this queue, its lock guards the state below
+    private final GattOperationQueue mOperations;
+
+    /*
+        Write waiting in the queue for each characteristic. A newer value for a
+        characteristic overwrites the one in the queued write, so a channel keeps its
+        position in line and the lamp never gets sent stale intermediate values.
+     */
+    private final Map<BluetoothGattCharacteristic, ChannelWrite> mPendingWrites;
+
+    // Newest value sent or read for each channel, used to fill in untouched channels of a frame
+    private final int[] mFrameValues = new int[LampChannel.COUNT];
+
+    // Channels written since streaming started, one bit per LampChannel index
+    private int mStreamedChannels = 0;
+    private boolean mStreaming = false;
+
+    // Write latency, coalescing and error counters of the link
+    private final LinkMetrics mMetrics = new LinkMetrics();
+
+    /*
+        Handles of writes requested or cut off while the link was down, by
+        Characteristic UUID. The values themselves are kept as desired values in the
+        channel registry, and all of them go out as one batch once the lamp is back.
+     */
+    private final Map<UUID, List<WriteFuture>> mOfflineWrites = new HashMap<UUID, List<WriteFuture>>();
+
+    // Set while the link drops, so the writes that fail because of it are kept for later
+    private boolean mParkingWrites = false;
+
+    /*
+        Connection interval follows the interaction mode: high priority while an
+        animation streams or a slider is dragged, balanced after a short quiet time
+        and low power once the lamp has been left alone for a while.
+     */
+    private int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private int mInteractions = 0;
+
+    // ATT MTU negotiated on this connection, and the largest one asked for
+    private int mMtu = DEFAULT_MTU;
+    private int mRequestedMtu = DEFAULT_MTU;
+
     private final Handler mHandler;
     private final WeakReference<Callback> mCallback;
-    private boolean mScanning = false, mConnected = false, mConnecting = false, mReadPending = false, mWritePending = false;
+    private boolean mConnected = false, mConnecting = false, mDirectConnecting = false;
+
+    // Set while the services reused from an earlier connection haven't answered yet
+    private boolean mReusedServices = false;
 
     /**
      * Callbacks for the UI
@@ -97,46 +175,12 @@ public class BleSunstone extends BluetoothGattCallback{
         void onConnectionTimeout();
 
         /**
-         * Called when the white LED brightness has been changed
-         * @param brightness The new 8-bit brightness value
-         */
-        void onWhiteBrightnessChange(final int brightness);
-
-        /**
-         * Called when the color LED brightness has been changed
-         * @param brightness The new 8-bit brightness value
+         * Called when a channel value has been read, written or notified
+         * @param channel Channel id, see LampChannel. Newer firmware may have
+         *                channels beyond LampChannel.COUNT.
+         * @param value The new 8-bit value
          */
-        void onColorBrightnessChange(final int brightness);
-
-        /**
-         * Called when the warm white LED value has been changed
-         * @param warmValue The new 8-bit value
-         */
-        void onWarmChange(final int warmValue);
-
-        /**
-         * Called when the cool white LED value has been changed
-         * @param coolValue The new 8-bit value
-         */
-        void onCoolChange(final int coolValue);
-
-        /**
-         * Called when the red LED value has been changed
-         * @param redValue The new 8-bit value
-         */
-        void onRedChange(final int redValue);
-
-        /**
-         * Called when the green LED value has been changed
-         * @param greenValue The new 8-bit value
-         */
-        void onGreenChange(final int greenValue);
-
-        /**
-         * Called when the blue LED value has been changed
-         * @param blueValue The new 8-bit value
-         */
-        void onBlueChange(final int blueValue);
+        void onChannelChange(final int channel, final int value);
     }
 
     /**
@@ -146,60 +190,256 @@ public class BleSunstone extends BluetoothGattCallback{
      * @param callback UI callback
      */
     public BleSunstone(Context context, Handler handler, Callback callback){
+        this(context, handler, callback, null);
+    }
+
+    /**
+     * Constructor for a BleSunstone that only connects to one particular lamp.
+     * @param context Application context
+     * @param handler UI thread handler
+     * @param callback UI callback
+     * @param address Bluetooth address of the lamp, or null to connect to the
+     *                last known lamp or the first one found
+     */
+    public BleSunstone(Context context, Handler handler, Callback callback, String address){
         mContext = context;
         mHandler = handler;
         mCallback = new WeakReference<Callback>(callback);
         mBluetoothAdapter = ((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter();
-        mUartLeScanSettings = (new ScanSettings.Builder()).setScanMode(ScanSettings.SCAN_MODE_BALANCED).setReportDelay(0).build();
-        mLeScanFilterList = new ArrayList<ScanFilter>();
-        mLeScanFilterList.add((new ScanFilter.Builder()).setServiceUuid(
-                new ParcelUuid(SUNSTONE_SERVICE_UUID),
-                new ParcelUuid(SUNSTONE_SERVICE_UUID_MASK)
-        ).build());
+        mScanner = new SunstoneScanner(mBluetoothAdapter, handler, new LampScanListener());
+        mChannels = new ChannelRegistry(new ChannelRegistry.Listener() {
+            @Override
+            public void onChannelChanged(int channel, int value) {
+                final Callback callback = mCallback.get();
+                if (callback != null){
+                    callback.onChannelChange(channel, value);
+                }
+            }
+        });
+
+        mOperations = new GattOperationQueue(handler);
+        mPendingWrites = new HashMap<BluetoothGattCharacteristic, ChannelWrite>();
 
-        readQueue = new ConcurrentLinkedQueue<BluetoothGattCharacteristic>();
-        writeQueue = new ConcurrentLinkedQueue<BluetoothGattCharacteristic>();
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mFixedAddress = address != null;
+        mSunstoneBleAddr = mFixedAddress ? address : mPrefs.getString(PREF_LAMP_ADDRESS, null);
     }
 
     /**
-     * Runnable to stop the BLE scan
+     * Write of a channel value, or of a whole frame to the packed frame
+     * Characteristic. While it waits in the queue it is the pending slot for its
+     * Characteristic: newer values overwrite its value in place, and it collects
+     * the handle of every request that it satisfies.
      */
-    private final Runnable stopLeScanRunner = new Runnable() {
+    private class ChannelWrite extends GattOperation {
+        final BluetoothGattCharacteristic characteristic;
+        final int channel;
+        final List<WriteFuture> futures = new ArrayList<WriteFuture>(1);
+        int value;
+        int[] frame;
+
+        // When the current attempt was handed to the stack, for the round trip time
+        long startNanos = 0;
+
+        /**
+         * Constructor for ChannelWrite.
+         * @param characteristic BLE Characteristic to be written
+         * @param channel Channel index from LampChannel, or -1 for a frame write
+         * @param priority Priority of the write
+         */
+        ChannelWrite(BluetoothGattCharacteristic characteristic, int channel, int priority){
+            super(priority, GATT_WRITE_TIMEOUT_MILLIS,
+                    priority == PRIORITY_ANIMATION ? 0 : GATT_WRITE_RETRIES);
+            this.characteristic = characteristic;
+            this.channel = channel;
+
+            if (channel < 0){
+                frame = mFrameValues.clone();
+            }
+        }
+
+        @Override
+        protected boolean start(BluetoothGatt gatt){
+            if (frame != null){
+                characteristic.setValue(LampChannel.encode(frame, new byte[LampChannel.COUNT]));
+            } else {
+                characteristic.setValue(value, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+            }
+
+            startNanos = System.nanoTime();
+            if (!gatt.writeCharacteristic(characteristic)){
+                return false;
+            }
+
+            // The value is on its way, newer values start a new write
+            if (mPendingWrites.get(characteristic) == this){
+                mPendingWrites.remove(characteristic);
+            }
+
+            if (frame != null){
+                System.arraycopy(frame, 0, mFrameValues, 0, LampChannel.COUNT);
+            } else if (channel < LampChannel.COUNT){
+                mFrameValues[channel] = value;
+            }
+            return true;
+        }
+
+        @Override
+        protected boolean isCompletedBy(Object target){
+            return target == characteristic;
+        }
+
+        @Override
+        protected boolean isAbandoned(){
+            for (WriteFuture future : futures){
+                if (!future.isCancelled()){
+                    return false;
+                }
+            }
+            return !futures.isEmpty();
+        }
+
+        @Override
+        protected boolean prepareRetry(){
+            final ChannelWrite newer = mPendingWrites.get(characteristic);
+
+            // A newer value is already queued, it satisfies everyone waiting on this one
+            if (newer != null && newer != this){
+                newer.futures.addAll(futures);
+                futures.clear();
+                return false;
+            }
+
+            mPendingWrites.put(characteristic, this);
+            return true;
+        }
+
+        @Override
+        protected void finish(boolean success){
+            if (mPendingWrites.get(characteristic) == this){
+                mPendingWrites.remove(characteristic);
+            }
+
+            if (!success && mParkingWrites){
+                // The link went down under this write, try again once it is back
+                for (WriteFuture future : futures){
+                    parkWrite(future);
+                }
+                futures.clear();
+                return;
+            }
+
+            if (success && startNanos != 0){
+                mMetrics.recordWrite(System.nanoTime() - startNanos);
+            } else if (!success){
+                mMetrics.recordFailed();
+            }
+
+            if (success){
+                // Confirm the value this write carried, the Characteristic may already hold the next one
+                if (frame != null){
+                    for (int i = 0; i < LampChannel.COUNT; i++){
+                        mChannels.update(i, frame[i]);
+                    }
+                } else {
+                    mChannels.update(channel, value);
+                }
+            } else {
+                if (frame != null){
+                    for (int i = 0; i < LampChannel.COUNT; i++){
+                        mChannels.revert(i, frame[i]);
+                    }
+                } else {
+                    mChannels.revert(channel, value);
+                }
+            }
+
+            for (WriteFuture future : futures){
+                future.complete(success);
+            }
+        }
+    }
+
+    /**
+     * Runnable that gives up on a direct connection and scans instead
+     */
+    private final Runnable mDirectConnectFallbackRunner = new Runnable() {
         @Override
         public void run() {
-            Log.d("Sunstone", "Stoping scan...");
-            mBluetoothAdapter.getBluetoothLeScanner().stopScan(mLeScanCallback);
+            if (!mDirectConnecting){
+                return;
+            }
 
-            mScanning = false;
+            Log.d("Sunstone", "Direct connection failed, scanning...");
+            abandonConnectionAttempt();
+            startScan();
+        }
+    };
 
-            if (!mConnecting && !mConnected) {
-                notifyOnConnectionTimeout();
+    /**
+     * Runnable that gives up on a connection whose services never showed up
+     */
+    private final Runnable mDiscoveryTimeoutRunner = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnected){
+                return;
             }
+
+            Log.d("Sunstone", "Service discovery timed out");
+            abandonConnectionAttempt();
+            notifyOnConnectFailed();
         }
     };
 
     /**
-     * Runnable to start a new BLE scan
+     * Runnable that relaxes the connection interval once interactions have stopped
      */
-    public void startScan(){
-        if (!mScanning) {
-            Log.d("Sunstone", "Starting scan...");
-            mHandler.postDelayed(stopLeScanRunner, SCAN_PERIOD);
+    private final Runnable mBalancedPriorityRunner = new Runnable() {
+        @Override
+        public void run() {
+            requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            mHandler.postDelayed(mLowPowerPriorityRunner, LOW_POWER_QUIET_MILLIS);
+        }
+    };
 
-            mScanning = true;
-            mBluetoothAdapter.getBluetoothLeScanner().startScan(mLeScanFilterList, mUartLeScanSettings, mLeScanCallback);
+    /**
+     * Runnable that drops the connection to low power after a long quiet time
+     */
+    private final Runnable mLowPowerPriorityRunner = new Runnable() {
+        @Override
+        public void run() {
+            requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
         }
+    };
+
+    /**
+     * Starts a short, full power scan for a lamp, for connects the user is waiting on
+     */
+    public void startScan(){
+        mScanner.start(SunstoneScanner.Profile.INTERACTIVE);
+    }
+
+    /**
+     * Starts a long, low power scan for a lamp, for finding one while the app is idle
+     */
+    public void startBackgroundScan(){
+        mScanner.start(SunstoneScanner.Profile.BACKGROUND);
     }
 
     /**
      * Stops the BLE scan
      */
     public void stopScan(){
-        if (mScanning) {
-            mHandler.removeCallbacks(stopLeScanRunner);
+        mScanner.stop();
+    }
 
-            stopLeScanRunner.run();
-        }
+    /**
+     * Gets the scanner, for its discovery statistics
+     * @return The scanner used to find the lamp
+     */
+    public SunstoneScanner getScanner(){
+        return mScanner;
     }
 
     /**
@@ -208,29 +448,100 @@ public class BleSunstone extends BluetoothGattCallback{
     public void connect(){
         if (mConnected){
             Log.d("Sunstone", "Already connected...");
+            readAll();
             notifyOnConnected();
             return;
         }
 
+        if (mConnecting){
+            Log.d("Sunstone", "Already connecting...");
+            return;
+        }
+
+        if (mScanner.isScanning()){
+            // The user is waiting now, a background scan is too slow
+            startScan();
+            return;
+        }
+
         if (mGatt != null && mGatt.connect()){
             Log.d("Sunstone", "Attempting to reconnect to GATT Server...");
-            notifyOnConnected();
+            mConnecting = true;
             return;
         }
 
         if (mSunstoneBleAddr != null && mBluetoothAdapter != null) {
-            Log.d("Sunstone", "Attempting to reconnect directly to the device...");
-            mBluetoothAdapter.getRemoteDevice(mSunstoneBleAddr).connectGatt(mContext, false, mGattCallback);
+            connectDirect();
         } else {
             startScan();
         }
     }
 
+    /**
+     * Connects straight to the last known lamp, skipping the scan. If the lamp
+     * doesn't answer within DIRECT_CONNECT_TIMEOUT we fall back to scanning.
+     */
+    private void connectDirect(){
+        Log.d("Sunstone", "Attempting to reconnect directly to the device...");
+
+        mConnecting = true;
+        mDirectConnecting = true;
+        mGatt = mBluetoothAdapter.getRemoteDevice(mSunstoneBleAddr).connectGatt(mContext, false, mGattCallback);
+        mHandler.postDelayed(mDirectConnectFallbackRunner, DIRECT_CONNECT_TIMEOUT);
+    }
+
+    /**
+     * Leaves a connection to the last known lamp pending in the background, so
+     * it connects on its own whenever the lamp comes back in range
+     */
+    private void connectInBackground(){
+        if (mSunstoneBleAddr == null || mBluetoothAdapter == null || mGatt != null){
+            return;
+        }
+
+        Log.d("Sunstone", "Waiting for the device in the background...");
+
+        mConnecting = true;
+        mGatt = mBluetoothAdapter.getRemoteDevice(mSunstoneBleAddr).connectGatt(mContext, true, mGattCallback);
+    }
+
+    /**
+     * Closes a connection that hasn't been established yet
+     */
+    private void abandonConnectionAttempt(){
+        mHandler.removeCallbacks(mDirectConnectFallbackRunner);
+        mHandler.removeCallbacks(mDiscoveryTimeoutRunner);
+        mDirectConnecting = false;
+        mConnecting = false;
+
+        if (mGatt != null && !mConnected){
+            mGatt.close();
+            mGatt = null;
+        }
+    }
+
+    /**
+     * Forgets the last known lamp, so the next connection scans for one
+     */
+    public void forgetLamp(){
+        if (mFixedAddress){
+            return;
+        }
+
+        mSunstoneBleAddr = null;
+        mPrefs.edit()
+                .remove(PREF_LAMP_ADDRESS)
+                .remove(PREF_LAMP_MTU)
+                .apply();
+    }
+
     /**
      * Disconnects from Sunstone
      */
     public void disconnect(){
         stopScan();
+        mHandler.removeCallbacks(mDirectConnectFallbackRunner);
+        mHandler.removeCallbacks(mDiscoveryTimeoutRunner);
 
         if (mGatt == null) {
             return;
@@ -246,6 +557,29 @@ public class BleSunstone extends BluetoothGattCallback{
         notifyOnDisconnected();
     }
 
+    /**
+     * Drops the link to Sunstone but keeps the GATT client, so the next connect()
+     * reconnects it and reuses the services that have already been discovered
+     */
+    public void suspend(){
+        stopScan();
+        mHandler.removeCallbacks(mDirectConnectFallbackRunner);
+        mHandler.removeCallbacks(mDiscoveryTimeoutRunner);
+
+        if (mGatt == null) {
+            return;
+        }
+
+        Log.d("Sunstone", "Suspending connection...");
+
+        mGatt.disconnect();
+        clearOperations(true);
+
+        mConnected = false;
+        mConnecting = false;
+        mDirectConnecting = false;
+    }
+
     /**
      * Closes the GATT connection to Sunstone
      */
@@ -257,35 +591,55 @@ public class BleSunstone extends BluetoothGattCallback{
         mGatt.close();
 
         clearChars();
+        clearOperations(false);
+        discardOfflineWrites();
 
         mConnected = false;
+        mConnecting = false;
+        mDirectConnecting = false;
+        mReusedServices = false;
     }
 
     /**
-     * Callback for the BLE scanner
+     * Listener for the lamp scan
      */
-    private class SunstoneScanCallback extends ScanCallback{
+    private class LampScanListener implements SunstoneScanner.Listener {
 
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            super.onScanResult(callbackType, result);
+        public void onLampsFound(List<ScanResult> results) {
+            if (mConnecting || mConnected){
+                return;
+            }
+
+            // Results are ranked, the closest lamp wins
+            for (ScanResult result : results){
+                // Lamps with a fixed address ignore every other Sunstone in the room
+                if (mFixedAddress && !result.getDevice().getAddress().equals(mSunstoneBleAddr)){
+                    continue;
+                }
+
+                Log.d("Sunstone", "Connecting to " + result.getDevice().getAddress() + " at " + result.getRssi() + " dBm");
+                mConnecting = true;
+                stopScan();
+                mGatt = result.getDevice().connectGatt(mContext, false, mGattCallback);
+                return;
+            }
+        }
 
-            final ScanRecord record = result.getScanRecord();
-            if (record == null){
+        @Override
+        public void onScanTimeout(SunstoneScanner.Profile profile, boolean found) {
+            // Background scans just end quietly, the user wasn't waiting on them
+            if (mConnecting || mConnected || profile != SunstoneScanner.Profile.INTERACTIVE) {
                 return;
             }
 
-            List<ParcelUuid> uuids = record.getServiceUuids();
+            notifyOnConnectionTimeout();
 
-            for (ParcelUuid uuid : uuids){
-                if (uuid.getUuid().equals(SUNSTONE_SERVICE_UUID)) {
-                    if (!mConnecting) {
-                        mConnecting = true;
-                        stopScan();
-                        result.getDevice().connectGatt(mContext, false, mGattCallback);
-                        return;
-                    }
-                }
+            // Keep looking while idle, without the cost of a full power scan
+            if (mSunstoneBleAddr != null){
+                connectInBackground();
+            } else {
+                startBackgroundScan();
             }
         }
 
@@ -298,24 +652,53 @@ public class BleSunstone extends BluetoothGattCallback{
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState){
         super.onConnectionStateChange(gatt, status, newState);
+
+        if (status != BluetoothGatt.GATT_SUCCESS){
+            mMetrics.recordGattError(status);
+        }
         if (newState == BluetoothGatt.STATE_CONNECTED) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                // The lamp answered, a slow discovery is no reason to go scanning for it
+                mHandler.removeCallbacks(mDirectConnectFallbackRunner);
+                mDirectConnecting = false;
+
+                if (gatt.getService(SUNSTONE_SERVICE_UUID) != null) {
+                    // Reconnected with the same GATT client, its services are most likely still valid
+                    Log.d("Sunstone", "Reusing discovered services...");
+                    mReusedServices = true;
+                    setUpServices(gatt);
+                }
                 // Connected to device, start discovering services.
-                if (!gatt.discoverServices()) {
+                else if (gatt.discoverServices()) {
+                    mHandler.postDelayed(mDiscoveryTimeoutRunner, DISCOVERY_TIMEOUT);
+                }
+                else {
                     // Error starting service discovery.
                     notifyOnConnectFailed();
                 }
             }
+            else if (mDirectConnecting) {
+                // The last known lamp didn't answer, look for it instead
+                mHandler.removeCallbacks(mDirectConnectFallbackRunner);
+                mHandler.post(mDirectConnectFallbackRunner);
+            }
             else {
                 // Error connecting to device.
                 notifyOnConnectFailed();
             }
         } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-            // Disconnected, notify callbacks of disconnection.
-            clearChars();
+            mHandler.removeCallbacks(mDiscoveryTimeoutRunner);
+
+            if (mDirectConnecting) {
+                mHandler.removeCallbacks(mDirectConnectFallbackRunner);
+                mHandler.post(mDirectConnectFallbackRunner);
+                return;
+            }
 
-            readQueue.clear();
-            writeQueue.clear();
+            // Disconnected, notify callbacks of disconnection. Writes that were cut
+            // off are replayed once the link is back.
+            clearChars();
+            clearOperations(true);
 
             mConnected = false;
 
@@ -327,36 +710,144 @@ public class BleSunstone extends BluetoothGattCallback{
     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status){
         super.onCharacteristicRead(gatt, characteristic, status);
 
+        if (checkReusedServices(gatt, status)){
+            return;
+        }
+
         if (status == BluetoothGatt.GATT_SUCCESS){
             updateCharValue(characteristic);
-
-            final BluetoothGattCharacteristic nextRead = readQueue.poll();
-            if (nextRead != null){
-                mGatt.readCharacteristic(nextRead);
-            } else {
-                mReadPending = false;
-            }
+        } else {
+            mMetrics.recordGattError(status);
         }
+
+        mOperations.onCallback(characteristic, status == BluetoothGatt.GATT_SUCCESS);
     }
 
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status){
         super.onCharacteristicWrite(gatt, characteristic, status);
 
-        if (status == BluetoothGatt.GATT_SUCCESS){
-            updateCharValue(characteristic);
+        if (checkReusedServices(gatt, status)){
+            return;
+        }
+
+        if (status != BluetoothGatt.GATT_SUCCESS){
+            Log.d("Sunstone", "Write failed with status " + status);
+            mMetrics.recordGattError(status);
+        }
 
-//            final BluetoothGattCharacteristic nextWrite = writeQueue.poll();
-//            if (nextWrite != null){
-//                mGatt.writeCharacteristic(nextWrite);
-//            } else {
-//                mWritePending = false;
-//            }
+        // The write confirms its own value when it finishes, failed writes are retried by the queue
+        mOperations.onCallback(characteristic, status == BluetoothGatt.GATT_SUCCESS);
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic){
+        super.onCharacteristicChanged(gatt, characteristic);
+
+        // Sunstone pushes every change, including ones made by other clients
+        updateCharValue(characteristic);
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status){
+        super.onDescriptorWrite(gatt, descriptor, status);
+
+        if (checkReusedServices(gatt, status)){
+            return;
+        }
+
+        if (status != BluetoothGatt.GATT_SUCCESS){
+            mMetrics.recordGattError(status);
+            Log.d("Sunstone", "Enabling notifications for " + descriptor.getCharacteristic().getUuid() + " failed with status " + status);
         }
+
+        mOperations.onCallback(descriptor, status == BluetoothGatt.GATT_SUCCESS);
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status){
+        super.onMtuChanged(gatt, mtu, status);
+
+        Log.d("Sunstone", "MTU is now " + mtu);
+        if (status == BluetoothGatt.GATT_SUCCESS){
+            mPrefs.edit().putInt(PREF_LAMP_MTU, mtu).apply();
+            synchronized (mOperations) {
+                mMtu = mtu;
+            }
+        } else {
+            mMetrics.recordGattError(status);
+        }
+
+        mOperations.onCallback(GattOperation.MTU_TARGET, status == BluetoothGatt.GATT_SUCCESS);
     }
 
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status){
+        if (status != BluetoothGatt.GATT_SUCCESS){
+            Log.d("Sunstone", "Service discovery failed with status " + status);
+            mMetrics.recordGattError(status);
+
+            // Gives up on the connection
+            mHandler.removeCallbacks(mDiscoveryTimeoutRunner);
+            mHandler.post(mDiscoveryTimeoutRunner);
+            return;
+        }
+
+        mReusedServices = false;
+        setUpServices(gatt);
+    }
+
+    /**
+     * Checks the first answer to an operation on services reused from an earlier
+     * connection. If it failed, the cached handles no longer match the lamp and the
+     * services are discovered again.
+     * @param gatt The GATT connection
+     * @param status Status from the GATT callback
+     * @return True if the services are being discovered again and the callback is moot
+     */
+    private boolean checkReusedServices(BluetoothGatt gatt, int status){
+        if (!mReusedServices){
+            return false;
+        }
+        mReusedServices = false;
+
+        if (status == BluetoothGatt.GATT_SUCCESS){
+            return false;
+        }
+
+        mMetrics.recordGattError(status);
+        rediscoverServices(gatt);
+        return true;
+    }
+
+    /**
+     * Throws away the services reused from an earlier connection and discovers
+     * them again. Writes cut off by this are replayed once the services are back.
+     * @param gatt The GATT connection
+     */
+    private void rediscoverServices(BluetoothGatt gatt){
+        Log.d("Sunstone", "Cached services are stale, discovering again...");
+
+        clearOperations(true);
+        clearChars();
+        mConnected = false;
+        mConnecting = true;
+
+        if (gatt.discoverServices()){
+            mHandler.postDelayed(mDiscoveryTimeoutRunner, DISCOVERY_TIMEOUT);
+        } else {
+            mConnecting = false;
+            notifyOnConnectFailed();
+        }
+    }
+
+    /**
+     * Looks up the Sunstone Characteristics once the services of the lamp are
+     * known, and finishes setting up the connection
+     * @param gatt The GATT connection
+     */
+    private void setUpServices(BluetoothGatt gatt){
+        mHandler.removeCallbacks(mDiscoveryTimeoutRunner);
         mGatt = gatt;
 
         if (gatt == null){
@@ -367,29 +858,52 @@ public class BleSunstone extends BluetoothGattCallback{
             return;
         }
 
-        whiteChar   = gatt.getService(SUNSTONE_SERVICE_UUID).getCharacteristic(SUNSTONE_WHITE_CHAR_UUID);
-        colorChar   = gatt.getService(SUNSTONE_SERVICE_UUID).getCharacteristic(SUNSTONE_COLOR_CHAR_UUID);
-        warmChar    = gatt.getService(SUNSTONE_SERVICE_UUID).getCharacteristic(SUNSTONE_WARM_CHAR_UUID);
-        coolChar    = gatt.getService(SUNSTONE_SERVICE_UUID).getCharacteristic(SUNSTONE_COOL_CHAR_UUID);
-        redChar     = gatt.getService(SUNSTONE_SERVICE_UUID).getCharacteristic(SUNSTONE_RED_CHAR_UUID);
-        greenChar   = gatt.getService(SUNSTONE_SERVICE_UUID).getCharacteristic(SUNSTONE_GREEN_CHAR_UUID);
-        blueChar    = gatt.getService(SUNSTONE_SERVICE_UUID).getCharacteristic(SUNSTONE_BLUE_CHAR_UUID);
-
-        if (       (whiteChar != null)
-                && (colorChar != null)
-                && (warmChar  != null)
-                && (coolChar  != null)
-                && (redChar   != null)
-                && (greenChar != null)
-                && (blueChar  != null)  ){
+        final BluetoothGattService service = gatt.getService(SUNSTONE_SERVICE_UUID);
 
+        if (service != null && mChannels.bind(service, SUNSTONE_FRAME_CHAR_UUID)){
+            frameChar = service.getCharacteristic(SUNSTONE_FRAME_CHAR_UUID);
 
-            mSunstoneBleAddr = mGatt.getDevice().getAddress();
+            if (!mFixedAddress){
+                mSunstoneBleAddr = mGatt.getDevice().getAddress();
+                mPrefs.edit().putString(PREF_LAMP_ADDRESS, mSunstoneBleAddr).apply();
+            }
 
+            mHandler.removeCallbacks(mDirectConnectFallbackRunner);
+            mDirectConnecting = false;
             mConnecting = false;
             mConnected = true;
+            mMetrics.recordConnect();
+
+            mOperations.setConnection(gatt);
+
+            // Every connection starts out balanced with the default MTU
+            synchronized (mOperations) {
+                mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+                mMtu = DEFAULT_MTU;
+                mRequestedMtu = DEFAULT_MTU;
+            }
+            scheduleQuietPriority();
+
+            // The lamp negotiated a larger MTU before, ask for it again right away
+            final int mtu = mPrefs.getInt(PREF_LAMP_MTU, DEFAULT_MTU);
+            if (mtu > DEFAULT_MTU){
+                requestMtu(mtu);
+            }
+            if (frameChar != null){
+                requestFrameMtu(LampChannel.COUNT);
+            }
+
+            subscribe();
+
+            // Whatever was asked for while the link was down goes out before the lamp is read back
+            flush();
+            readAll();
 
             notifyOnConnected();
+        } else if (mReusedServices) {
+            // The cached services don't have what we need anymore, the lamp may have been updated
+            mReusedServices = false;
+            rediscoverServices(gatt);
         } else {
             mConnecting = false;
             mConnected = false;
@@ -398,304 +912,708 @@ public class BleSunstone extends BluetoothGattCallback{
         }
     }
 
+    /**
+     * Turns on notifications for the channel values, so the cached values follow
+     * Sunstone without polling. If the packed frame Characteristic can notify, it
+     * stands in for the channels it covers, otherwise each channel is subscribed
+     * separately.
+     */
+    private void subscribe(){
+        final int count = mChannels.getChannelCount();
+        final List<BluetoothGattCharacteristic> chars = new ArrayList<BluetoothGattCharacteristic>(count);
+
+        // The frame only covers the LampChannel channels, newer ones always need their own
+        int channel = 0;
+        if (canNotify(frameChar)){
+            chars.add(frameChar);
+            channel = LampChannel.COUNT;
+        }
+
+        for (; channel < count; channel++){
+            if (canNotify(mChannels.getCharacteristic(channel))){
+                chars.add(mChannels.getCharacteristic(channel));
+            }
+        }
+
+        final List<GattOperation> subscriptions = new ArrayList<GattOperation>(chars.size());
+        for (BluetoothGattCharacteristic characteristic : chars){
+            final BluetoothGattDescriptor cccd = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_UUID);
+            if (cccd == null || !mGatt.setCharacteristicNotification(characteristic, true)){
+                continue;
+            }
+
+            subscriptions.add(new GattOperation.DescriptorWrite(cccd,
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, GattOperation.PRIORITY_BACKGROUND));
+        }
+
+        mOperations.enqueueAll(subscriptions);
+    }
+
+    private static boolean canNotify(BluetoothGattCharacteristic characteristic){
+        return characteristic != null
+                && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0;
+    }
+
+    /**
+     * Reads the current value of every channel as one batch. If the packed frame
+     * Characteristic can be read it stands in for the channels it covers, the
+     * other reads are queued back to back.
+     */
+    public void readAll(){
+        if (!mConnected){
+            return;
+        }
+
+        final int count = mChannels.getChannelCount();
+        final List<GattOperation> reads = new ArrayList<GattOperation>(count);
+
+        int channel = 0;
+        if (frameChar != null
+                && (frameChar.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) != 0){
+            reads.add(new GattOperation.Read(frameChar, GattOperation.PRIORITY_BACKGROUND));
+            channel = LampChannel.COUNT;
+        }
+
+        for (; channel < count; channel++){
+            if (mChannels.getCharacteristic(channel) != null){
+                reads.add(new GattOperation.Read(mChannels.getCharacteristic(channel), GattOperation.PRIORITY_BACKGROUND));
+            }
+        }
+
+        mOperations.enqueueAll(reads);
+    }
+
     /**
      * Clears the Characteristic values
      */
     private void clearChars(){
-        whiteChar = null;
-        colorChar = null;
-        warmChar = null;
-        coolChar = null;
-        redChar = null;
-        greenChar = null;
-        blueChar = null;
+        mChannels.clear();
+        frameChar = null;
     }
 
     /**
-     * Updates a Characteristic
-     * @param characteristic
+     * Updates the cached value of a channel from its Characteristic and notifies
+     * the UI of the new value
+     * @param characteristic Characteristic from a GATT callback
      */
     private void updateCharValue(BluetoothGattCharacteristic characteristic){
+        if (characteristic == frameChar){
+            updateFrameValue(characteristic);
+            return;
+        }
+
+        final int channel = mChannels.getChannel(characteristic);
+        final byte[] value = characteristic.getValue();
+        if (channel < 0 || value == null || value.length == 0){
+            return;
+        }
 
-        final UUID char_uuid = characteristic.getUuid();
-        final byte value = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0).byteValue();
+        if (channel < LampChannel.COUNT){
+            synchronized (mOperations) {
+                mFrameValues[channel] = value[0] & 0xFF;
+            }
+        }
 
-        if (mCallback.get() == null){
+        mChannels.update(channel, value[0]);
+    }
+
+    /**
+     * Splits a packed frame value into the channels and notifies the UI of each
+     * channel value
+     * @param characteristic The packed frame Characteristic
+     */
+    private void updateFrameValue(BluetoothGattCharacteristic characteristic){
+        final byte[] frame = characteristic.getValue();
+        if (frame == null){
             return;
         }
 
-        // Notify the UI of the new value
-        if (char_uuid.equals(SUNSTONE_WHITE_CHAR_UUID)){
-            whiteChar = characteristic;
-            mCallback.get().onWhiteBrightnessChange(value);
-        } else if (char_uuid.equals(SUNSTONE_COLOR_CHAR_UUID)){
-            colorChar = characteristic;
-            mCallback.get().onColorBrightnessChange(value);
-        } else if (char_uuid.equals(SUNSTONE_WARM_CHAR_UUID)){
-            warmChar = characteristic;
-            mCallback.get().onWarmChange(value);
-        } else if (char_uuid.equals(SUNSTONE_COOL_CHAR_UUID)){
-            coolChar = characteristic;
-            mCallback.get().onCoolChange(value);
-        } else if (char_uuid.equals(SUNSTONE_RED_CHAR_UUID)){
-            redChar = characteristic;
-            mCallback.get().onRedChange(value);
-        } else if (char_uuid.equals(SUNSTONE_GREEN_CHAR_UUID)){
-            greenChar = characteristic;
-            mCallback.get().onGreenChange(value);
-        } else if (char_uuid.equals(SUNSTONE_BLUE_CHAR_UUID)){
-            blueChar = characteristic;
-            mCallback.get().onBlueChange(value);
-        }
-    }
-
-    /**
-     * Request to read a Characteristic over BLE. If there are other
-     * read requests pending the read will be added to the read queue.
+        // Newer firmware may pack more than the LampChannel channels, notifications of it would be cut short
+        if (frame.length > LampChannel.COUNT){
+            requestFrameMtu(frame.length);
+        }
+
+        final int count = Math.min(frame.length, LampChannel.COUNT);
+
+        synchronized (mOperations) {
+            for (int channel = 0; channel < count; channel++){
+                mFrameValues[channel] = frame[channel] & 0xFF;
+            }
+        }
+
+        for (int channel = 0; channel < count; channel++){
+            mChannels.update(channel, frame[channel]);
+        }
+    }
+
+    /**
+     * Request to read a Characteristic over BLE. The read is queued behind any
+     * writes and started as soon as the link is free.
      * @param characteristic BLE Characteristic to be read
      * @return True if the request was accepted, false otherwise
      */
     private boolean requestRead(BluetoothGattCharacteristic characteristic){
-        if (mConnected){
-            if (!mReadPending) {
-                mReadPending = mGatt.readCharacteristic(characteristic);
-            } else {
-                readQueue.add(characteristic);
-            }
-            return mReadPending;
+        if (mConnected && characteristic != null){
+            mOperations.enqueue(new GattOperation.Read(characteristic, GattOperation.PRIORITY_BACKGROUND));
+            return true;
         } else {
             return false;
         }
     }
 
     /**
-     * Request to write a Characteristic value.
-     * @param characteristic BLE Characteristic to be written
-     * @return false if there is no connection active
+     * Request to write a channel value. If a write is already waiting for
+     * this channel its value is replaced, otherwise the channel is put at the
+     * end of the line. The write is started as soon as no other GATT operation
+     * is outstanding.
+     * @param channel Channel index from LampChannel
+     * @param value 8-bit value to write
+     * @return Handle that completes when the value (or a newer one) has been
+     * written. Without a connection the value is kept until the lamp is back.
+     * Fails right away for a channel the lamp doesn't have.
      */
-    private boolean requestWrite(BluetoothGattCharacteristic characteristic){
-        if (mConnected){
-//            if (!mWritePending) {
-                mGatt.writeCharacteristic(characteristic);
-                mWritePending = true;
-//            } else {
-//                writeQueue.add(characteristic);
-//            }
-
-            return mWritePending;
-        } else {
-            return false;
+    private WriteFuture requestWrite(int channel, int value){
+        if (channel < 0 || channel >= mChannels.getChannelCount()){
+            return WriteFuture.failed(null);
         }
+
+        final int[] values = new int[Math.max(channel + 1, LampChannel.COUNT)];
+        Arrays.fill(values, LampChannel.UNCHANGED);
+        values[channel] = value;
+
+        return requestWrites(values, GattOperation.PRIORITY_INTERACTIVE, true)[channel];
     }
 
     /**
-     * Read the white LED brightness value
+     * Request to write several Characteristic values as one batch. The pending
+     * slots are all updated before the next GATT operation is picked, so the
+     * values go out back to back.
+     * @param values 8-bit value per channel, indexed by channel id. Channels set
+     *               to LampChannel.UNCHANGED are skipped.
+     * @param priority GattOperation priority of the writes
+     * @param suppress True to skip values Sunstone is known to hold already
+     * @return Handle per channel that completes when the value has been written,
+     * null for skipped channels
      */
-    public void readWhiteBrightness(){
-        requestRead(whiteChar);
+    private WriteFuture[] requestWrites(int[] values, int priority, boolean suppress){
+        final WriteFuture[] futures = new WriteFuture[values.length];
+        final List<GattOperation> writes = new ArrayList<GattOperation>(values.length);
+
+        synchronized (mOperations) {
+            for (int channel = 0; channel < values.length; channel++){
+                if (values[channel] == LampChannel.UNCHANGED){
+                    continue;
+                }
+
+                final UUID charUuid = mChannels.getUuid(channel);
+
+                if (!mConnected && charUuid != null){
+                    // Keep the value until the lamp is back, newer values replace it
+                    mChannels.setDesired(channel, values[channel]);
+                    futures[channel] = new WriteFuture(charUuid);
+                    parkWrite(futures[channel]);
+                    continue;
+                }
+
+                if (mChannels.getCharacteristic(channel) == null){
+                    futures[channel] = WriteFuture.failed(charUuid);
+                    continue;
+                }
+
+                if (!mChannels.setDesired(channel, values[channel]) && suppress){
+                    mMetrics.recordSuppressed();
+                    futures[channel] = WriteFuture.succeeded(charUuid);
+                    continue;
+                }
+
+                futures[channel] = new WriteFuture(charUuid);
+
+                final ChannelWrite write = queueWrite(channel, values[channel], futures[channel], priority);
+                if (write != null){
+                    writes.add(write);
+                }
+            }
+
+            mOperations.enqueueAll(writes);
+        }
+
+        return futures;
     }
 
     /**
-     * Read the color LED brightness value
+     * Puts a value in the pending slot of a channel, replacing any value that
+     * hasn't been sent yet. When Sunstone has the packed frame Characteristic the
+     * value is merged into the pending frame instead, so any number of channel
+     * changes go out in a single write. Must be called holding the queue's lock.
+     * @param channel Channel index from LampChannel
+     * @param value 8-bit value to write
+     * @param future Handle to complete once the value has been written
+     * @param priority GattOperation priority of the write
+     * @return A new write that has to be queued, or null if the value was merged
+     * into a write that is already queued
      */
-    public void readColorBrightness(){
-        requestRead(colorChar);
+    private ChannelWrite queueWrite(int channel, int value, WriteFuture future, int priority){
+        if (mStreaming){
+            mStreamedChannels |= 1 << channel;
+        }
+
+        // The packed frame only covers the LampChannel channels
+        final boolean packed = frameChar != null && channel < LampChannel.COUNT;
+        final BluetoothGattCharacteristic characteristic = packed ? frameChar : mChannels.getCharacteristic(channel);
+
+        ChannelWrite write = mPendingWrites.get(characteristic);
+        final boolean created = write == null;
+        if (created) {
+            write = new ChannelWrite(characteristic, packed ? -1 : channel, priority);
+            mPendingWrites.put(characteristic, write);
+        } else {
+            mOperations.raisePriority(write, priority);
+            mMetrics.recordCoalesced();
+        }
+
+        if (write.frame != null){
+            write.frame[channel] = value & 0xFF;
+        } else {
+            write.value = value & 0xFF;
+        }
+        write.futures.add(future);
+
+        return created ? write : null;
     }
 
     /**
-     * Read the warm white LED value
+     * Gets the Bluetooth address of the lamp
+     * @return The address, or null if no lamp has been found yet
      */
-    public void readWarmValue(){
-        requestRead(warmChar);
+    public String getAddress(){
+        return mSunstoneBleAddr;
     }
 
     /**
-     * Read the cool white LED value
+     * Checks whether the lamp is connected and ready for writes
+     * @return True if connected
      */
-    public void readCoolValue(){
-        requestRead(coolChar);
+    public boolean isConnected(){
+        return mConnected;
     }
 
     /**
-     * Read the red LED value
+     * Checks whether Sunstone can take all channel values in a single write
+     * @return True if the packed frame Characteristic is available
      */
-    public void readRedValue(){
-        requestRead(redChar);
+    public boolean isFrameWriteSupported(){
+        return frameChar != null;
     }
 
     /**
-     * Read the green LED value
+     * Fails every queued and outstanding GATT operation, for when the link goes down
+     * @param keepWrites True to keep the channel writes for when the link is back
      */
-    public void readGreenValue(){
-        requestRead(greenChar);
+    private void clearOperations(boolean keepWrites){
+        mHandler.removeCallbacks(mBalancedPriorityRunner);
+        mHandler.removeCallbacks(mLowPowerPriorityRunner);
+
+        synchronized (mOperations) {
+            mOperations.setConnection(null);
+            mParkingWrites = keepWrites;
+            mOperations.clear();
+            mParkingWrites = false;
+            mPendingWrites.clear();
+            mStreaming = false;
+            mStreamedChannels = 0;
+        }
     }
 
     /**
-     * Read the blue LED value
+     * Asks Sunstone for a larger ATT MTU. The request goes through the operation
+     * queue like everything else.
+     * @param mtu Requested MTU in bytes
      */
-    public void readBlueValue(){
-        requestRead(blueChar);
+    public void requestMtu(int mtu){
+        synchronized (mOperations) {
+            if (!mConnected){
+                return;
+            }
+
+            mRequestedMtu = Math.max(mRequestedMtu, mtu);
+            mOperations.enqueue(new GattOperation.RequestMtu(mtu));
+        }
     }
 
     /**
-     * Gets the white LED brightness value from the cached Characteristic
-     * @return 8-bit brightness value
+     * Asks for an MTU large enough to write a packed frame in one ATT write,
+     * unless the connection already has one. An MTU that has been asked for
+     * already isn't asked for again, whether the answer is still on its way or
+     * Sunstone settled on less: it would only give the same answer.
+     * @param frameLength Length of the packed frame in bytes
      */
-    public int getWhiteBrightness(){
-        if (whiteChar != null){
-            return whiteChar.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-        }
+    private void requestFrameMtu(int frameLength){
+        final int mtu = frameLength + ATT_WRITE_HEADER;
 
-        return 0;
+        synchronized (mOperations) {
+            if (mtu <= mMtu || mtu <= mRequestedMtu){
+                return;
+            }
+        }
+        requestMtu(mtu);
     }
 
     /**
-     * Gets the color LED brightness value from the cached Characteristic
-     * @return 8-bit brightness value
+     * Asks for a different connection interval. Asking for the priority the
+     * connection already has does nothing.
+     * @param connectionPriority One of the BluetoothGatt CONNECTION_PRIORITY constants
      */
-    public int getColorBrightness(){
-        if (colorChar != null){
-            return colorChar.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-        }
+    public void requestConnectionPriority(int connectionPriority){
+        synchronized (mOperations) {
+            if (!mConnected || connectionPriority == mConnectionPriority){
+                return;
+            }
 
-        return 0;
+            Log.d("Sunstone", "Connection priority " + connectionPriority);
+            mConnectionPriority = connectionPriority;
+            mOperations.enqueue(new GattOperation.RequestConnectionPriority(connectionPriority));
+        }
     }
 
     /**
-     * Gets the warm white LED value from the cached Characteristic
-     * @return 8-bit value
+     * Switches the connection to high priority for as long as the user is
+     * interacting with the lamp, like dragging a slider. Every call has to be
+     * matched by a call to {@link #endInteraction()}.
      */
-    public int getWarmValue(){
-        if (warmChar != null){
-            return warmChar.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+    public void beginInteraction(){
+        synchronized (mOperations) {
+            mInteractions++;
         }
 
-        return 0;
+        mHandler.removeCallbacks(mBalancedPriorityRunner);
+        mHandler.removeCallbacks(mLowPowerPriorityRunner);
+        requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
     }
 
     /**
-     * Gets the cool white LED value from the cached Characteristic
-     * @return 8-bit value
+     * Ends an interaction. Once none is left and the lamp has been quiet for a
+     * while, the connection is relaxed again.
      */
-    public int getCoolValue(){
-        if (coolChar != null){
-            return coolChar.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+    public void endInteraction(){
+        synchronized (mOperations) {
+            if (mInteractions == 0){
+                return;
+            }
+            mInteractions--;
         }
 
-        return 0;
+        scheduleQuietPriority();
     }
 
     /**
-     * Gets the red LED value from the cached Characteristic
-     * @return 8-bit value
+     * Restarts the countdown to relaxing the connection interval, unless an
+     * interaction is still going on
      */
-    public int getRedValue(){
-        if (redChar != null){
-            return redChar.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+    private void scheduleQuietPriority(){
+        synchronized (mOperations) {
+            if (mInteractions > 0){
+                return;
+            }
         }
 
-        return 0;
+        mHandler.removeCallbacks(mBalancedPriorityRunner);
+        mHandler.removeCallbacks(mLowPowerPriorityRunner);
+        mHandler.postDelayed(mBalancedPriorityRunner, INTERACTION_QUIET_MILLIS);
     }
 
     /**
-     * Gets the green LED value from the cached Characteristic
-     * @return 8-bit value
+     * Switches to write-without-response for every channel that supports it.
+     * Writes are still paced one at a time off onCharacteristicWrite, as Android
+     * refuses a second write while one is outstanding, but that callback comes as
+     * soon as the controller has taken the write. Handles of streamed writes
+     * complete once the write has been handed to the controller, not when
+     * Sunstone acknowledges it.
      */
-    public int getGreenValue(){
-        if (greenChar != null){
-            return greenChar.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-        }
+    public void startStreaming(){
+        synchronized (mOperations) {
+            if (mStreaming){
+                return;
+            }
 
-        return 0;
+            mStreaming = true;
+            mStreamedChannels = 0;
+            applyWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        }
     }
 
     /**
-     * Gets the blue LED value from the cached Characteristic
-     * @return 8-bit value
+     * Switches back to acknowledged writes, and writes the newest value of every
+     * channel that was streamed again with acknowledgement so the light is known
+     * to settle on the final value.
+     * @return Handle that completes when the settle writes have been acknowledged
      */
-    public int getBlueValue(){
-        if (blueChar != null){
-            return blueChar.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+    public BatchWriteFuture stopStreaming(){
+        final int[] settle = LampChannel.newFrame();
+
+        synchronized (mOperations) {
+            if (!mStreaming){
+                return new BatchWriteFuture(new WriteFuture[0]);
+            }
+
+            mStreaming = false;
+            applyWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+
+            for (int channel = 0; channel < LampChannel.COUNT; channel++){
+                if ((mStreamedChannels & (1 << channel)) != 0){
+                    settle[channel] = mFrameValues[channel];
+                }
+            }
+            mStreamedChannels = 0;
+
+            // Values that haven't gone out yet are merged into the settle writes below
+            for (ChannelWrite pending : mPendingWrites.values()){
+                if (pending.frame != null){
+                    System.arraycopy(pending.frame, 0, settle, 0, LampChannel.COUNT);
+                } else if (pending.channel < LampChannel.COUNT){
+                    settle[pending.channel] = pending.value;
+                }
+            }
         }
 
-        return 0;
+        // Streamed values only count as confirmed by the controller, so they go out again regardless
+        return new BatchWriteFuture(requestWrites(settle, GattOperation.PRIORITY_INTERACTIVE, false));
     }
 
     /**
-     * Sets a new value for the white LED brightness
-     * @param value 8-bit brightness value
+     * Checks whether writes currently go out without acknowledgement
+     * @return True while streaming
      */
-    public void setWhiteBrightness(int value){
-        if (whiteChar != null){
-            whiteChar.setValue(value & 0xFF, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            requestWrite(whiteChar);
+    public boolean isStreaming(){
+        synchronized (mOperations) {
+            return mStreaming;
         }
     }
 
     /**
-     * Sets a new value for the color LED brightness
-     * @param value 8-bit brightness value
+     * Sets the write type of every Characteristic that supports it.
+     * Must be called holding the queue's lock.
+     * @param writeType One of the BluetoothGattCharacteristic WRITE_TYPE constants
      */
-    public void setColorBrightness(int value){
-        if (colorChar != null){
-            colorChar.setValue(value & 0xFF, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            requestWrite(colorChar);
+    private void applyWriteType(int writeType){
+        for (int channel = 0; channel < mChannels.getChannelCount(); channel++){
+            setWriteType(mChannels.getCharacteristic(channel), writeType);
+        }
+        setWriteType(frameChar, writeType);
+    }
+
+    private static void setWriteType(BluetoothGattCharacteristic characteristic, int writeType){
+        if (characteristic == null){
+            return;
+        }
+
+        if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0){
+            return;
         }
+
+        characteristic.setWriteType(writeType);
     }
 
     /**
-     * Sets a new value for the warm white LED
-     * @param value 8-bit value
+     * Gets the number of light channels on the lamp
+     * @return Channel count, at least LampChannel.COUNT. Newer firmware may have more.
      */
-    public void setWarmValue(int value){
-        if (warmChar != null){
-            warmChar.setValue(value & 0xFF, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            requestWrite(warmChar);
-        }
+    public int getChannelCount(){
+        return mChannels.getChannelCount();
+    }
+
+    /**
+     * Gets the Characteristic UUID of a channel
+     * @param channel Channel id
+     * @return The UUID, or null if there is no such channel
+     */
+    public UUID getChannelUuid(int channel){
+        return mChannels.getUuid(channel);
+    }
+
+    /**
+     * Reads a channel value from Sunstone. The new value is reported through
+     * the callback.
+     * @param channel Channel id, see LampChannel
+     */
+    public void readValue(int channel){
+        requestRead(mChannels.getCharacteristic(channel));
     }
 
     /**
-     * Sets a new value for the cool white LED
+     * Gets the cached value of a channel
+     * @param channel Channel id, see LampChannel
+     * @return 8-bit value
+     */
+    public int getValue(int channel){
+        return mChannels.getValue(channel);
+    }
+
+    /**
+     * Sets a new value for a channel
+     * @param channel Channel id, see LampChannel
      * @param value 8-bit value
+     * @return Handle that completes when the write has been acknowledged
      */
-    public void setCoolValue(int value){
-        if (coolChar != null){
-            coolChar.setValue(value & 0xFF, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            requestWrite(coolChar);
+    public WriteFuture setValue(int channel, int value){
+        return requestWrite(channel, value);
+    }
+
+    /**
+     * Sets new values for several channels at once. The values are queued as one
+     * batch and coalesced with any writes that are still waiting.
+     * @param values 8-bit value per channel, indexed by channel id. Channels set
+     *               to LampChannel.UNCHANGED are left alone.
+     * @return Handle per channel that completes when the write has been
+     * acknowledged, null for channels that were left alone
+     */
+    public WriteFuture[] setValues(int[] values){
+        return requestWrites(values, GattOperation.PRIORITY_INTERACTIVE, true);
+    }
+
+    /**
+     * Writes every channel whose requested value Sunstone hasn't confirmed yet,
+     * including the ones requested while the link was down, as one batch.
+     * Channels that already hold their value are left alone.
+     * @return Handle that completes when the dirty channels have been written
+     */
+    public BatchWriteFuture flush(){
+        final List<WriteFuture> futures = new ArrayList<WriteFuture>();
+        final List<GattOperation> writes = new ArrayList<GattOperation>();
+
+        synchronized (mOperations) {
+            if (!mConnected){
+                return new BatchWriteFuture(new WriteFuture[0]);
+            }
+
+            for (int channel = 0; channel < mChannels.getChannelCount(); channel++){
+                final UUID charUuid = mChannels.getUuid(channel);
+                List<WriteFuture> waiting = mOfflineWrites.remove(charUuid);
+
+                if (!mChannels.isDirty(channel) || mChannels.getCharacteristic(channel) == null){
+                    // Nothing to write after all
+                    completeAll(waiting, !mChannels.isDirty(channel));
+                    continue;
+                }
+
+                if (waiting == null){
+                    waiting = new ArrayList<WriteFuture>(1);
+                    waiting.add(new WriteFuture(charUuid));
+                }
+
+                // Every handle joins the same write, only the newest value goes out
+                for (WriteFuture future : waiting){
+                    final ChannelWrite write = queueWrite(channel, mChannels.getDesired(channel), future, GattOperation.PRIORITY_INTERACTIVE);
+                    if (write != null){
+                        writes.add(write);
+                    }
+                }
+                futures.addAll(waiting);
+            }
+
+            // Channels the lamp doesn't have anymore
+            for (List<WriteFuture> waiting : mOfflineWrites.values()){
+                completeAll(waiting, false);
+            }
+            mOfflineWrites.clear();
+
+            if (!writes.isEmpty()){
+                Log.d("Sunstone", "Replaying " + writes.size() + " writes...");
+            }
+            mOperations.enqueueAll(writes);
         }
+
+        return new BatchWriteFuture(futures.toArray(new WriteFuture[futures.size()]));
     }
 
     /**
-     * Sets a new value for the red LED
-     * @param value 8-bit value
+     * Keeps the handle of a write for when the link is back. Must be called
+     * holding the queue's lock.
+     * @param future Handle of the write
      */
-    public void setRedValue(int value){
-        if (redChar != null){
-            redChar.setValue(value & 0xFF, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            requestWrite(redChar);
+    private void parkWrite(WriteFuture future){
+        List<WriteFuture> waiting = mOfflineWrites.get(future.getCharacteristicUuid());
+        if (waiting == null){
+            waiting = new ArrayList<WriteFuture>();
+            mOfflineWrites.put(future.getCharacteristicUuid(), waiting);
         }
+        waiting.add(future);
     }
 
     /**
-     * Sets a new value for the green LED
-     * @param value 8-bit value
+     * Fails the writes kept for when the link is back and forgets their values.
      */
-    public void setGreenValue(int value){
-        if (greenChar != null){
-            greenChar.setValue(value & 0xFF, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            requestWrite(greenChar);
+    private void discardOfflineWrites(){
+        synchronized (mOperations) {
+            for (List<WriteFuture> waiting : mOfflineWrites.values()){
+                completeAll(waiting, false);
+            }
+            mOfflineWrites.clear();
+        }
+
+        mChannels.discardDesired();
+    }
+
+    private static void completeAll(List<WriteFuture> futures, boolean success){
+        if (futures == null){
+            return;
+        }
+
+        for (WriteFuture future : futures){
+            future.complete(success);
         }
     }
 
     /**
-     * Sets a new value for the blue LED
-     * @param value 8-bit value
+     * Gets the number of writes that were skipped because Sunstone already held
+     * the value
+     * @return Suppressed write count since the lamp was created
      */
-    public void setBlueValue(int value){
-        if (blueChar != null){
-            blueChar.setValue(value & 0xFF, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            requestWrite(blueChar);
+    public int getSuppressedWriteCount(){
+        return (int) mMetrics.getSuppressed();
+    }
+
+    /**
+     * Gets the link telemetry: write round trip times, write rate, coalesced,
+     * suppressed and failed writes, GATT errors, reconnects and scan time
+     * @return Point in time copy of the counters
+     */
+    public LinkMetrics.Snapshot getMetrics(){
+        long scanMillis = 0;
+        for (SunstoneScanner.Profile profile : SunstoneScanner.Profile.values()){
+            scanMillis += mScanner.getStats(profile).getScanMillis();
         }
+
+        return mMetrics.snapshot(scanMillis);
+    }
+
+    /**
+     * Sends an animation frame. The values are queued without waiting for the
+     * writes to be acknowledged.
+     * @param frame 8-bit value per channel, indexed by LampChannel
+     * @return Handle that completes when every value in the frame has been written
+     */
+    @Override
+    public BatchWriteFuture writeFrame(int[] frame){
+        return new BatchWriteFuture(requestWrites(frame, GattOperation.PRIORITY_ANIMATION, true));
+    }
+
+    /**
+     * Switches to streaming writes for the length of an animation
+     */
+    @Override
+    public void beginStream(){
+        beginInteraction();
+        startStreaming();
+    }
+
+    /**
+     * Switches back to acknowledged writes at the end of an animation
+     */
+    @Override
+    public void endStream(){
+        stopStreaming();
+        endInteraction();
     }
 
     /**
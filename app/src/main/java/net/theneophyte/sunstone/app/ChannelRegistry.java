@@ -0,0 +1,269 @@
+package net.theneophyte.sunstone.app;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import net.theneophyte.sunstone.app.lighting.LampChannel;
+import net.theneophyte.sunstone.app.protocol.ChannelShadow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Table of the light channels of a connected lamp, indexed by channel id. Each
+ * entry holds the channel's Characteristic, and the last value read from or
+ * acknowledged by the lamp is cached in a primitive array, so the hot paths never
+ * go through the Characteristic's boxed getters.
+ *
+ * The channels in {@link LampChannel} always have their own ids. Any other
+ * Characteristic in the Sunstone service that follows the Sunstone UUID scheme is
+ * taken to be a channel added by newer firmware and gets the next free id, in UUID
+ * order, so new channels show up without code changes.
+ *
+ * The table also shadows the lamp state in a {@link ChannelShadow}: the cached
+ * value is the one confirmed by the lamp, next to the last value requested.
+ */
+class ChannelRegistry {
+
+    /**
+     * Callback for channel values
+     */
+    interface Listener {
+
+        /**
+         * Called when a channel value has been read, written or notified
+         * @param channel Channel id
+         * @param value The new 8-bit value
+         */
+        void onChannelChanged(int channel, int value);
+    }
+
+    // Characteristic UUIDs of the channels every Sunstone has, indexed by LampChannel
+    private static final UUID[] KNOWN_UUIDS = {
+            BleSunstone.SUNSTONE_WHITE_CHAR_UUID,
+            BleSunstone.SUNSTONE_COLOR_CHAR_UUID,
+            BleSunstone.SUNSTONE_WARM_CHAR_UUID,
+            BleSunstone.SUNSTONE_COOL_CHAR_UUID,
+            BleSunstone.SUNSTONE_RED_CHAR_UUID,
+            BleSunstone.SUNSTONE_GREEN_CHAR_UUID,
+            BleSunstone.SUNSTONE_BLUE_CHAR_UUID
+    };
+
+    // Bits of the most significant half that every Sunstone UUID shares
+    private static final long SUNSTONE_UUID_MASK = BleSunstone.SUNSTONE_SERVICE_UUID_MASK.getMostSignificantBits();
+
+    private final Listener mListener;
+
+    private BluetoothGattCharacteristic[] mChars = new BluetoothGattCharacteristic[LampChannel.COUNT];
+    private UUID[] mUuids = KNOWN_UUIDS.clone();
+    private int mCount = LampChannel.COUNT;
+
+    // Confirmed and desired value per channel
+    private final ChannelShadow mShadow = new ChannelShadow(LampChannel.COUNT);
+
+    /**
+     * Constructor for ChannelRegistry.
+     * @param listener Notified of every channel value change
+     */
+    ChannelRegistry(Listener listener){
+        mListener = listener;
+    }
+
+    /**
+     * Fills the table from the Sunstone service of a connected lamp
+     * @param service The Sunstone GATT service
+     * @param exclude UUIDs of Characteristics in the service that aren't channels
+     * @return False if one of the channels every Sunstone has is missing
+     */
+    synchronized boolean bind(BluetoothGattService service, UUID... exclude){
+        final List<BluetoothGattCharacteristic> extra = new ArrayList<BluetoothGattCharacteristic>();
+
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()){
+            final UUID uuid = characteristic.getUuid();
+            if (getKnownChannel(uuid) < 0 && isSunstoneUuid(uuid) && !contains(exclude, uuid)){
+                extra.add(characteristic);
+            }
+        }
+
+        Collections.sort(extra, new Comparator<BluetoothGattCharacteristic>() {
+            @Override
+            public int compare(BluetoothGattCharacteristic lhs, BluetoothGattCharacteristic rhs) {
+                return lhs.getUuid().compareTo(rhs.getUuid());
+            }
+        });
+
+        final int count = LampChannel.COUNT + extra.size();
+        if (count != mCount){
+            mChars = new BluetoothGattCharacteristic[count];
+            mUuids = new UUID[count];
+            mCount = count;
+            mShadow.resize(count);
+        }
+
+        boolean complete = true;
+        for (int channel = 0; channel < LampChannel.COUNT; channel++){
+            mUuids[channel] = KNOWN_UUIDS[channel];
+            mChars[channel] = service.getCharacteristic(KNOWN_UUIDS[channel]);
+            complete &= mChars[channel] != null;
+        }
+
+        for (int i = 0; i < extra.size(); i++){
+            mChars[LampChannel.COUNT + i] = extra.get(i);
+            mUuids[LampChannel.COUNT + i] = extra.get(i).getUuid();
+        }
+
+        return complete;
+    }
+
+    /**
+     * Forgets the Characteristics, for when the connection goes down. Cached
+     * values are kept, but no longer count as confirmed since the lamp may be
+     * changed by someone else while we're away. Desired values are kept too, so
+     * they can be written once the lamp is back.
+     */
+    synchronized void clear(){
+        for (int channel = 0; channel < mCount; channel++){
+            mChars[channel] = null;
+        }
+        mShadow.forgetConfirmed();
+    }
+
+    /**
+     * Drops every desired value that hasn't been confirmed, for when the lamp
+     * is closed for good
+     */
+    void discardDesired(){
+        mShadow.discardDesired();
+    }
+
+    /**
+     * Gets the number of channels, including the ones added by newer firmware
+     * @return Channel count
+     */
+    synchronized int getChannelCount(){
+        return mCount;
+    }
+
+    /**
+     * Gets the Characteristic of a channel
+     * @param channel Channel id
+     * @return The Characteristic, or null if not connected or there is no such channel
+     */
+    synchronized BluetoothGattCharacteristic getCharacteristic(int channel){
+        return channel >= 0 && channel < mCount ? mChars[channel] : null;
+    }
+
+    /**
+     * Gets the Characteristic UUID of a channel
+     * @param channel Channel id
+     * @return The UUID, or null if there is no such channel
+     */
+    synchronized UUID getUuid(int channel){
+        return channel >= 0 && channel < mCount ? mUuids[channel] : null;
+    }
+
+    /**
+     * Gets the channel a Characteristic belongs to
+     * @param characteristic Characteristic from a GATT callback
+     * @return Channel id, or -1 if it isn't a channel
+     */
+    synchronized int getChannel(BluetoothGattCharacteristic characteristic){
+        // The stack hands back the same objects, and the table is short
+        for (int channel = 0; channel < mCount; channel++){
+            if (mChars[channel] == characteristic){
+                return channel;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the cached value of a channel
+     * @param channel Channel id
+     * @return 8-bit value, 0 if it is unknown
+     */
+    int getValue(int channel){
+        return mShadow.getValue(channel);
+    }
+
+    /**
+     * Records a value requested for a channel, see {@link ChannelShadow#setDesired}
+     * @param channel Channel id
+     * @param value 8-bit value
+     * @return False if the write can be skipped
+     */
+    boolean setDesired(int channel, int value){
+        return mShadow.setDesired(channel, value);
+    }
+
+    /**
+     * Gives up on a desired value after its write failed
+     * @param channel Channel id
+     * @param value 8-bit value of the failed write
+     */
+    void revert(int channel, int value){
+        mShadow.revert(channel, value);
+    }
+
+    /**
+     * Checks whether a channel has a desired value the lamp hasn't confirmed
+     * @param channel Channel id
+     * @return True if the channel is dirty
+     */
+    boolean isDirty(int channel){
+        return mShadow.isDirty(channel);
+    }
+
+    /**
+     * Gets the last value requested for a channel
+     * @param channel Channel id
+     * @return 8-bit value, only meaningful while the channel is dirty
+     */
+    int getDesired(int channel){
+        return mShadow.getDesired(channel);
+    }
+
+    /**
+     * Caches a value confirmed by the lamp and notifies the listener
+     * @param channel Channel id
+     * @param value 8-bit value
+     */
+    void update(int channel, int value){
+        if (mShadow.confirm(channel, value)){
+            mListener.onChannelChanged(channel, value & 0xFF);
+        }
+    }
+
+    /**
+     * Gets the channel of one of the Characteristics every Sunstone has
+     * @param uuid Characteristic UUID
+     * @return Channel index from LampChannel, or -1
+     */
+    private static int getKnownChannel(UUID uuid){
+        for (int channel = 0; channel < LampChannel.COUNT; channel++){
+            if (KNOWN_UUIDS[channel].equals(uuid)){
+                return channel;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSunstoneUuid(UUID uuid){
+        final UUID base = BleSunstone.SUNSTONE_SERVICE_UUID;
+        return uuid.getLeastSignificantBits() == base.getLeastSignificantBits()
+                && (uuid.getMostSignificantBits() & SUNSTONE_UUID_MASK) == (base.getMostSignificantBits() & SUNSTONE_UUID_MASK)
+                && !uuid.equals(base);
+    }
+
+    private static boolean contains(UUID[] uuids, UUID uuid){
+        for (UUID candidate : uuids){
+            if (candidate.equals(uuid)){
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,96 @@
+package net.theneophyte.sunstone.app;
+
+import android.view.Choreographer;
+
+import net.theneophyte.sunstone.app.lighting.LampChannel;
+
+import java.util.Arrays;
+
+/**
+ * Moves channel value changes from the GATT threads onto the UI thread once per
+ * display frame. Changes are collected as they come in, newer values replacing
+ * older ones, and handed over as a single snapshot on the next vsync. A frame
+ * that changes every channel costs one UI thread message instead of one per
+ * channel, and the sliders never redraw more often than the screen does.
+ */
+public class ChannelUpdateDispatcher implements Choreographer.FrameCallback {
+
+    /**
+     * Receives the collected changes, called on the UI thread
+     */
+    public interface Listener {
+
+        /**
+         * Called once per frame in which channel values have changed
+         * @param values 8-bit value per channel, indexed by channel id. Channels
+         *               that didn't change are LampChannel.UNCHANGED.
+         */
+        void onChannelsChanged(int[] values);
+    }
+
+    private final Choreographer mChoreographer;
+    private final Listener mListener;
+
+    // Values changed since the last frame, guarded by this
+    private int[] mPending = LampChannel.newFrame();
+    private boolean mScheduled = false;
+
+    /**
+     * Constructor for ChannelUpdateDispatcher. Must be called on the UI thread.
+     * @param listener Receives the collected changes
+     */
+    public ChannelUpdateDispatcher(Listener listener){
+        mChoreographer = Choreographer.getInstance();
+        mListener = listener;
+    }
+
+    /**
+     * Records a new channel value. Can be called from any thread.
+     * @param channel Channel id, see LampChannel
+     * @param value 8-bit value
+     */
+    public synchronized void post(int channel, int value){
+        if (channel < 0){
+            return;
+        }
+
+        if (channel >= mPending.length){
+            final int oldLength = mPending.length;
+            mPending = Arrays.copyOf(mPending, channel + 1);
+            Arrays.fill(mPending, oldLength, mPending.length, LampChannel.UNCHANGED);
+        }
+
+        mPending[channel] = value & 0xFF;
+
+        if (!mScheduled){
+            mScheduled = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Drops every change that hasn't been handed over yet
+     */
+    public synchronized void cancel(){
+        mChoreographer.removeFrameCallback(this);
+        Arrays.fill(mPending, LampChannel.UNCHANGED);
+        mScheduled = false;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos){
+        final int[] snapshot;
+
+        synchronized (this) {
+            if (!mScheduled){
+                return;
+            }
+
+            snapshot = mPending.clone();
+            Arrays.fill(mPending, LampChannel.UNCHANGED);
+            mScheduled = false;
+        }
+
+        mListener.onChannelsChanged(snapshot);
+    }
+}
@@ -0,0 +1,140 @@
+package net.theneophyte.sunstone.app;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import net.theneophyte.sunstone.app.protocol.QueuedOperation;
+
+/**
+ * A single GATT operation waiting in a {@link GattOperationQueue}. Every operation
+ * carries its own priority, timeout and number of retries.
+ */
+abstract class GattOperation extends QueuedOperation<BluetoothGatt> {
+
+    // Callback target for MTU changes, which don't refer to an attribute
+    static final Object MTU_TARGET = new Object();
+
+    /**
+     * Constructor for GattOperation.
+     * @param priority One of the PRIORITY constants, lower goes first
+     * @param timeoutMillis Time to wait for the callback before giving up
+     * @param retries Number of times to try again after a failure or timeout
+     */
+    GattOperation(int priority, long timeoutMillis, int retries){
+        super(priority, timeoutMillis, retries);
+    }
+
+    /**
+     * Reads a characteristic. The value is handled by the GATT callback.
+     */
+    static class Read extends GattOperation {
+        private final BluetoothGattCharacteristic mCharacteristic;
+
+        Read(BluetoothGattCharacteristic characteristic, int priority){
+            super(priority, 1000, 2);
+            mCharacteristic = characteristic;
+        }
+
+        @Override
+        protected boolean start(BluetoothGatt gatt){
+            return gatt.readCharacteristic(mCharacteristic);
+        }
+
+        @Override
+        protected boolean isCompletedBy(Object target){
+            return target == mCharacteristic;
+        }
+
+        @Override
+        protected void finish(boolean success){
+        }
+    }
+
+    /**
+     * Writes a descriptor, such as the notification configuration.
+     */
+    static class DescriptorWrite extends GattOperation {
+        private final BluetoothGattDescriptor mDescriptor;
+        private final byte[] mValue;
+
+        DescriptorWrite(BluetoothGattDescriptor descriptor, byte[] value, int priority){
+            super(priority, 1000, 2);
+            mDescriptor = descriptor;
+            mValue = value;
+        }
+
+        @Override
+        protected boolean start(BluetoothGatt gatt){
+            mDescriptor.setValue(mValue);
+            return gatt.writeDescriptor(mDescriptor);
+        }
+
+        @Override
+        protected boolean isCompletedBy(Object target){
+            return target == mDescriptor;
+        }
+
+        @Override
+        protected void finish(boolean success){
+        }
+    }
+
+    /**
+     * Asks for a larger ATT MTU.
+     */
+    static class RequestMtu extends GattOperation {
+        private final int mMtu;
+
+        RequestMtu(int mtu){
+            super(PRIORITY_INTERACTIVE, 2000, 0);
+            mMtu = mtu;
+        }
+
+        @Override
+        protected boolean start(BluetoothGatt gatt){
+            return gatt.requestMtu(mMtu);
+        }
+
+        @Override
+        protected boolean isCompletedBy(Object target){
+            return target == MTU_TARGET;
+        }
+
+        @Override
+        protected void finish(boolean success){
+        }
+    }
+
+    /**
+     * Changes the connection interval. The stack doesn't report when the new
+     * parameters are in effect, so this is done as soon as it has been issued.
+     */
+    static class RequestConnectionPriority extends GattOperation {
+        private final int mConnectionPriority;
+
+        RequestConnectionPriority(int connectionPriority){
+            super(PRIORITY_INTERACTIVE, 0, 1);
+            mConnectionPriority = connectionPriority;
+        }
+
+        @Override
+        protected boolean start(BluetoothGatt gatt){
+            return gatt.requestConnectionPriority(mConnectionPriority);
+        }
+
+        @Override
+        protected boolean needsCallback(){
+            return false;
+        }
+
+        @Override
+        protected boolean isCompletedBy(Object target){
+            return false;
+        }
+
+        @Override
+        protected void finish(boolean success){
+        }
+    }
+}
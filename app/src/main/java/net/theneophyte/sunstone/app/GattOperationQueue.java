@@ -0,0 +1,43 @@
+package net.theneophyte.sunstone.app;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.util.Log;
+
+import net.theneophyte.sunstone.app.protocol.OperationQueue;
+import net.theneophyte.sunstone.app.protocol.QueuedOperation;
+
+/**
+ * Serializes every GATT operation on a connection, see {@link OperationQueue}.
+ * Timeouts and retries run on a Handler.
+ */
+class GattOperationQueue extends OperationQueue<BluetoothGatt> {
+
+    /**
+     * Constructor for GattOperationQueue.
+     * @param handler Handler used for timeouts and retries
+     */
+    GattOperationQueue(final Handler handler){
+        super(new Timer() {
+            @Override
+            public void postDelayed(Runnable runnable, long delayMillis) {
+                handler.postDelayed(runnable, delayMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                handler.removeCallbacks(runnable);
+            }
+        });
+    }
+
+    @Override
+    protected void onTimeout(QueuedOperation<BluetoothGatt> operation){
+        Log.d("Sunstone", "GATT operation timed out");
+    }
+
+    @Override
+    protected void onLateCallback(Object target){
+        Log.d("Sunstone", "Dropping late GATT callback");
+    }
+}
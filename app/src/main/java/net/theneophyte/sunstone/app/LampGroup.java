@@ -0,0 +1,146 @@
+package net.theneophyte.sunstone.app;
+
+
+import net.theneophyte.sunstone.app.lighting.FrameSink;
+import net.theneophyte.sunstone.app.protocol.BatchWriteFuture;
+import net.theneophyte.sunstone.app.protocol.GroupWriteFuture;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+
+/**
+ * Several lamps driven as one. Every update is handed to all members back to back
+ * without waiting in between, so the writes go out in the next connection event of
+ * every link and the lamps change within one connection interval of each other.
+ * While a group animation streams, every member is asked for the shortest
+ * connection interval to keep that window small.
+ *
+ * Members never wait on each other. A lamp that still has a frame outstanding gets
+ * the new frame merged into its pending write, and is left out of the handle that
+ * goes back to the animation engine, so one slow lamp doesn't make the engine drop
+ * frames for the rest of the group.
+ */
+public class LampGroup implements FrameSink {
+
+    private final List<BleSunstone> mMembers = new CopyOnWriteArrayList<BleSunstone>();
+
+    // Last frame sent to each member, to tell which members are keeping up
+    private final Map<BleSunstone, Future<Boolean>> mLastFrames = new HashMap<BleSunstone, Future<Boolean>>();
+
+    /**
+     * Adds a lamp to the group
+     * @param lamp Lamp to add
+     */
+    public void add(BleSunstone lamp){
+        if (!mMembers.contains(lamp)){
+            mMembers.add(lamp);
+        }
+    }
+
+    /**
+     * Removes a lamp from the group
+     * @param lamp Lamp to remove
+     */
+    public void remove(BleSunstone lamp){
+        mMembers.remove(lamp);
+
+        synchronized (mLastFrames) {
+            mLastFrames.remove(lamp);
+        }
+    }
+
+    /**
+     * Gets the lamps in the group
+     * @return The members, in the order they were added
+     */
+    public List<BleSunstone> getMembers(){
+        return new ArrayList<BleSunstone>(mMembers);
+    }
+
+    /**
+     * Sets channel values on every lamp in the group
+     * @param values 8-bit value per channel, indexed by LampChannel. Channels set
+     *               to LampChannel.UNCHANGED are left alone.
+     * @return Handle that completes when every lamp has the values
+     */
+    public GroupWriteFuture setValues(int[] values){
+        final List<Future<Boolean>> writes = new ArrayList<Future<Boolean>>(mMembers.size());
+
+        for (BleSunstone lamp : mMembers){
+            writes.add(new BatchWriteFuture(lamp.setValues(values)));
+        }
+
+        return new GroupWriteFuture(writes);
+    }
+
+    /**
+     * Switches every lamp in the group to high priority while the user interacts
+     * with them, see {@link BleSunstone#beginInteraction()}
+     */
+    public void beginInteraction(){
+        for (BleSunstone lamp : mMembers){
+            lamp.beginInteraction();
+        }
+    }
+
+    /**
+     * Ends an interaction started with {@link #beginInteraction()}
+     */
+    public void endInteraction(){
+        for (BleSunstone lamp : mMembers){
+            lamp.endInteraction();
+        }
+    }
+
+    /**
+     * Sends one animation frame to every connected lamp in the group. Lamps that
+     * are away skip the frame instead of piling it up for when they are back.
+     * @param frame 8-bit value per channel, indexed by LampChannel
+     * @return Handle that completes when every lamp that is keeping up has the frame
+     */
+    @Override
+    public GroupWriteFuture writeFrame(int[] frame){
+        final List<Future<Boolean>> keepingUp = new ArrayList<Future<Boolean>>(mMembers.size());
+
+        synchronized (mLastFrames) {
+            for (BleSunstone lamp : mMembers){
+                if (!lamp.isConnected()){
+                    mLastFrames.remove(lamp);
+                    continue;
+                }
+
+                final Future<Boolean> previous = mLastFrames.get(lamp);
+                final Future<Boolean> write = lamp.writeFrame(frame);
+
+                mLastFrames.put(lamp, write);
+                if (previous == null || previous.isDone()){
+                    keepingUp.add(write);
+                }
+            }
+        }
+
+        return new GroupWriteFuture(keepingUp);
+    }
+
+    @Override
+    public void beginStream(){
+        for (BleSunstone lamp : mMembers){
+            lamp.beginStream();
+        }
+    }
+
+    @Override
+    public void endStream(){
+        for (BleSunstone lamp : mMembers){
+            lamp.endStream();
+        }
+
+        synchronized (mLastFrames) {
+            mLastFrames.clear();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package net.theneophyte.sunstone.app;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.ScanResult;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a GATT connection to every Sunstone lamp in the room. The primary lamp is
+ * the one the UI controls; other lamps are found with {@link #scan}, remembered
+ * across restarts and each get their own {@link BleSunstone}, so they are all
+ * connected at the same time. {@link #getGroup()} drives all of them at once.
+ *
+ * All methods must be called on the main thread.
+ */
+public class LampRegistry {
+
+    // Preferences remembering every lamp that has been added
+    private static final String PREFS_NAME = "sunstone_lamps";
+    private static final String PREF_LAMP_ADDRESSES = "lamp_addresses";
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final SharedPreferences mPrefs;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final BleSunstone mPrimary;
+    private final LampGroup mGroup = new LampGroup();
+
+    // Lamps other than the primary one, by address
+    private final Map<String, BleSunstone> mLamps = new LinkedHashMap<String, BleSunstone>();
+
+    // Lamps only keep a weak reference to their callback, so the registry holds on to them
+    private final Map<String, LampCallback> mLampCallbacks = new LinkedHashMap<String, LampCallback>();
+
+    private final SunstoneScanner mScanner;
+
+    /**
+     * Constructor for LampRegistry. Lamps that were added before are restored,
+     * but not connected until {@link #connectAll()}.
+     * @param context Application context
+     * @param handler UI thread handler
+     * @param primary The lamp the UI controls, part of the group as well
+     */
+    public LampRegistry(Context context, Handler handler, BleSunstone primary){
+        mContext = context;
+        mHandler = handler;
+        mPrimary = primary;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mBluetoothAdapter = ((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter();
+
+        mScanner = new SunstoneScanner(mBluetoothAdapter, handler, mScanListener);
+
+        mGroup.add(mPrimary);
+
+        for (String address : mPrefs.getStringSet(PREF_LAMP_ADDRESSES, Collections.<String>emptySet())){
+            createLamp(address);
+        }
+    }
+
+    /**
+     * Gets the group of every known lamp, including the primary one
+     * @return The group
+     */
+    public LampGroup getGroup(){
+        return mGroup;
+    }
+
+    /**
+     * Gets the lamp the UI controls
+     * @return The primary lamp
+     */
+    public BleSunstone getPrimary(){
+        return mPrimary;
+    }
+
+    /**
+     * Gets every known lamp, the primary one first
+     * @return The lamps
+     */
+    public List<BleSunstone> getLamps(){
+        final List<BleSunstone> lamps = new ArrayList<BleSunstone>(mLamps.size() + 1);
+        lamps.add(mPrimary);
+        lamps.addAll(mLamps.values());
+        return lamps;
+    }
+
+    /**
+     * Adds a lamp and connects to it. The lamp is remembered for the next start.
+     * @param address Bluetooth address of the lamp
+     * @return The lamp, or the existing one if it was already known
+     */
+    public BleSunstone addLamp(String address){
+        if (address.equals(mPrimary.getAddress())){
+            return mPrimary;
+        }
+
+        BleSunstone lamp = mLamps.get(address);
+        if (lamp == null){
+            lamp = createLamp(address);
+            saveAddresses();
+        }
+
+        lamp.connect();
+        return lamp;
+    }
+
+    /**
+     * Disconnects from a lamp and forgets about it
+     * @param address Bluetooth address of the lamp
+     */
+    public void removeLamp(String address){
+        final BleSunstone lamp = mLamps.remove(address);
+        if (lamp == null){
+            return;
+        }
+
+        mLampCallbacks.remove(address);
+        mGroup.remove(lamp);
+        lamp.disconnect();
+        saveAddresses();
+    }
+
+    /**
+     * Connects to every known lamp. The connections are set up in parallel.
+     */
+    public void connectAll(){
+        for (BleSunstone lamp : getLamps()){
+            lamp.connect();
+        }
+    }
+
+    /**
+     * Drops the link to every known lamp, see {@link BleSunstone#suspend()}
+     */
+    public void suspendAll(){
+        stopScan();
+
+        for (BleSunstone lamp : getLamps()){
+            lamp.suspend();
+        }
+    }
+
+    /**
+     * Disconnects from every known lamp
+     */
+    public void disconnectAll(){
+        stopScan();
+
+        for (BleSunstone lamp : getLamps()){
+            lamp.disconnect();
+        }
+    }
+
+    /**
+     * Looks for Sunstone lamps that aren't known yet and adds every one found.
+     * Nothing is done until the primary lamp has been found, otherwise it would be
+     * added a second time.
+     * @param profile How to scan. A background scan finds lamps while idle at a
+     *                fraction of the battery cost.
+     */
+    public void scan(SunstoneScanner.Profile profile){
+        if (mBluetoothAdapter == null || mPrimary.getAddress() == null){
+            return;
+        }
+
+        Log.d("Sunstone", "Scanning for more lamps...");
+        mScanner.start(profile);
+    }
+
+    /**
+     * Stops looking for more lamps
+     */
+    public void stopScan(){
+        mScanner.stop();
+    }
+
+    /**
+     * Gets the scanner, for its discovery statistics
+     * @return The scanner used to find more lamps
+     */
+    public SunstoneScanner getScanner(){
+        return mScanner;
+    }
+
+    private BleSunstone createLamp(String address){
+        final LampCallback callback = new LampCallback(address);
+        final BleSunstone lamp = new BleSunstone(mContext, mHandler, callback, address);
+
+        mLampCallbacks.put(address, callback);
+        mLamps.put(address, lamp);
+        mGroup.add(lamp);
+        return lamp;
+    }
+
+    private void saveAddresses(){
+        mPrefs.edit()
+                .putStringSet(PREF_LAMP_ADDRESSES, new HashSet<String>(mLamps.keySet()))
+                .apply();
+    }
+
+    /**
+     * Listener for the scan for more lamps
+     */
+    private final SunstoneScanner.Listener mScanListener = new SunstoneScanner.Listener() {
+        @Override
+        public void onLampsFound(List<ScanResult> results) {
+            for (ScanResult result : results){
+                final String address = result.getDevice().getAddress();
+                if (!mLamps.containsKey(address) && !address.equals(mPrimary.getAddress())){
+                    Log.d("Sunstone", "Found lamp " + address + " at " + result.getRssi() + " dBm");
+                    addLamp(address);
+                }
+            }
+        }
+
+        @Override
+        public void onScanTimeout(SunstoneScanner.Profile profile, boolean found) {
+            Log.d("Sunstone", "Lamp scan done, " + (mLamps.size() + 1) + " lamps known");
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.d("Sunstone", "Lamp scan failed with error " + errorCode);
+        }
+    };
+
+    /**
+     * Connection callback for the lamps other than the primary one. Their values
+     * aren't shown anywhere, so only the connection state is of interest.
+     */
+    private static class LampCallback implements BleSunstone.Callback {
+        private final String mAddress;
+
+        LampCallback(String address){
+            mAddress = address;
+        }
+
+        @Override
+        public void onConnected(){
+            Log.d("Sunstone", "Lamp " + mAddress + " connected");
+        }
+
+        @Override
+        public void onConnectFailed(){
+            Log.d("Sunstone", "Lamp " + mAddress + " failed to connect");
+        }
+
+        @Override
+        public void onDisconnected(){
+            Log.d("Sunstone", "Lamp " + mAddress + " disconnected");
+        }
+
+        @Override
+        public void onConnectionTimeout(){
+            Log.d("Sunstone", "Lamp " + mAddress + " not found");
+        }
+
+        @Override
+        public void onChannelChange(final int channel, final int value){
+        }
+    }
+}
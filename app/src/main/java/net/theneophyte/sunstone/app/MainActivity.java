@@ -2,20 +2,35 @@ package net.theneophyte.sunstone.app;
 
 import android.app.Activity;
 import android.app.TimePickerDialog;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.SeekBar;
+import android.widget.TextView;
 import android.widget.TimePicker;
 import android.widget.Toast;
 
+import net.theneophyte.sunstone.app.lighting.AnimationEngine;
+import net.theneophyte.sunstone.app.lighting.LampChannel;
+import net.theneophyte.sunstone.app.lighting.LightingDemos;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 /**
  * Main Activity class
  *
@@ -28,6 +43,9 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
     // The timeout value for setting values on Sunstone
     private final static long WRITE_TIMEOUT_MILLIS = 200;
 
+    // Refresh period of the link stats overlay
+    private final static long LINK_STATS_PERIOD_MILLIS = 1000;
+
     private SeekBar mRedSeekBar,
             mGreenSeekBar,
             mBlueSeekBar,
@@ -37,16 +55,23 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             mColorSeekBar;
 
     private Button mColorDemoButton, mSunriseDemoButton;
-    private Handler mHandler;
 
+    // Shared lamp connection, null until the service is bound
+    private SunstoneService mService;
     private BleSunstone mSunstone;
 
+    // Every known lamp, driven together by the sliders and the demos
+    private LampGroup mGroup;
+
     private int white, color, warm, cool, red, green, blue;
 
-    private volatile boolean colorDemo = false, sunriseDemo = false, writeFlag = false;
+    private volatile boolean colorDemo = false, sunriseDemo = false;
 
-    private ColorDemoTask mColorDemoTask;
-    private SunriseDemoTask mSunriseDemoTask;
+    private AnimationEngine mAnimationEngine;
+    private ChannelUpdateDispatcher mChannelDispatcher;
+
+    private final Handler mHandler = new Handler();
+    private TextView mLinkStatsView;
 
     /**
      * Called when the Application is created
@@ -64,10 +89,9 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             finish();
         }
 
-        mHandler = new Handler(Looper.getMainLooper());
-        mSunstone = new BleSunstone(getApplicationContext(), mHandler, this);
-        mColorDemoTask = new ColorDemoTask();
-        mSunriseDemoTask = new SunriseDemoTask();
+        mAnimationEngine = new AnimationEngine();
+        mChannelDispatcher = new ChannelUpdateDispatcher(mChannelListener);
+        mLinkStatsView = (TextView) findViewById(R.id.link_stats);
 
         /*
             Set up the Color Demo button
@@ -77,9 +101,9 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             public void onClick(View v) {
                 if (!colorDemo) {
                     // Save the current color values
-                    red = mSunstone.getRedValue();
-                    green = mSunstone.getGreenValue();
-                    blue = mSunstone.getBlueValue();
+                    red = mSunstone.getValue(LampChannel.RED);
+                    green = mSunstone.getValue(LampChannel.GREEN);
+                    blue = mSunstone.getValue(LampChannel.BLUE);
 
                     // Disable the color sliders and Sunrise Demo button
                     enableView(mRedSeekBar, false);
@@ -89,20 +113,12 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
 
                     colorDemo = true;
 
-                    /*
-                        AsyncTasks can't be reused, so we have to instantiate a new one
-                        if the user wants to run it again
-                    */
-                    if (mColorDemoTask.getStatus() == AsyncTask.Status.FINISHED)
-                    {
-                        mColorDemoTask = new ColorDemoTask();
-                    }
-
                     // Start the demo
-                    mColorDemoTask.execute();
+                    mAnimationEngine.play(LightingDemos.COLOR_CYCLE, mGroup, null);
 
                 } else {
-                    mColorDemoTask.cancel(true);
+                    mAnimationEngine.stop();
+                    logAnimationStats();
 
                     // Reset the colors to their previous values
                     new AsyncTask<Void, Void, Void>(){
@@ -124,7 +140,7 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             }
         });
 
-        mColorDemoButton.setEnabled(true);
+        mColorDemoButton.setEnabled(false);
 
         /*
             Set up the Sunrise Demo button
@@ -134,13 +150,13 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             public void onClick(View v) {
                 if (!sunriseDemo) {
                     // Save the current color and brightness values
-                    red = mSunstone.getRedValue();
-                    green = mSunstone.getGreenValue();
-                    blue = mSunstone.getBlueValue();
-                    warm = mSunstone.getWarmValue();
-                    cool = mSunstone.getCoolValue();
-                    color = mSunstone.getColorBrightness();
-                    white = mSunstone.getWhiteBrightness();
+                    red = mSunstone.getValue(LampChannel.RED);
+                    green = mSunstone.getValue(LampChannel.GREEN);
+                    blue = mSunstone.getValue(LampChannel.BLUE);
+                    warm = mSunstone.getValue(LampChannel.WARM);
+                    cool = mSunstone.getValue(LampChannel.COOL);
+                    color = mSunstone.getValue(LampChannel.COLOR);
+                    white = mSunstone.getValue(LampChannel.WHITE);
 
                     // Disable all of the sliders and the Color Demo button
                     enableView(mColorSeekBar, false);
@@ -153,20 +169,13 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
                     enableView(mColorDemoButton, false);
 
                     sunriseDemo = true;
-                    /*
-                        AsyncTasks can't be reused, so we have to instantiate a new one
-                        if the user wants to run it again
-                    */
-                    if (mSunriseDemoTask.getStatus() == AsyncTask.Status.FINISHED)
-                    {
-                        mSunriseDemoTask = new SunriseDemoTask();
-                    }
 
                     // Start the demo
-                    mSunriseDemoTask.execute();
+                    mAnimationEngine.play(LightingDemos.SUNRISE, mGroup, null);
 
                 } else {
-                    mSunriseDemoTask.cancel(true);
+                    mAnimationEngine.stop();
+                    logAnimationStats();
 
                     // Reset the color and brightness values to their previous states
                     new AsyncTask<Void, Void, Void>(){
@@ -186,7 +195,7 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             }
         });
 
-        mSunriseDemoButton.setEnabled(true);
+        mSunriseDemoButton.setEnabled(false);
 
         /*
             Set up the blue color slider
@@ -201,11 +210,11 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             }
 
             public void onStartTrackingTouch(SeekBar seekbar) {
-
+                mGroup.beginInteraction();
             }
 
             public void onStopTrackingTouch(SeekBar seekbar) {
-
+                mGroup.endInteraction();
             }
         });
         mBlueSeekBar.setEnabled(false);
@@ -223,11 +232,11 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             }
 
             public void onStartTrackingTouch(SeekBar seekbar) {
-
+                mGroup.beginInteraction();
             }
 
             public void onStopTrackingTouch(SeekBar seekbar) {
-
+                mGroup.endInteraction();
             }
         });
         mRedSeekBar.setEnabled(false);
@@ -245,11 +254,11 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             }
 
             public void onStartTrackingTouch(SeekBar seekbar) {
-
+                mGroup.beginInteraction();
             }
 
             public void onStopTrackingTouch(SeekBar seekbar) {
-
+                mGroup.endInteraction();
             }
         });
         mGreenSeekBar.setEnabled(false);
@@ -267,11 +276,11 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             }
 
             public void onStartTrackingTouch(SeekBar seekbar) {
-
+                mGroup.beginInteraction();
             }
 
             public void onStopTrackingTouch(SeekBar seekbar) {
-
+                mGroup.endInteraction();
             }
         });
         mWarmSeekBar.setEnabled(false);
@@ -289,11 +298,11 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             }
 
             public void onStartTrackingTouch(SeekBar seekbar) {
-
+                mGroup.beginInteraction();
             }
 
             public void onStopTrackingTouch(SeekBar seekbar) {
-
+                mGroup.endInteraction();
             }
         });
         mCoolSeekBar.setEnabled(false);
@@ -311,11 +320,11 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             }
 
             public void onStartTrackingTouch(SeekBar seekbar) {
-
+                mGroup.beginInteraction();
             }
 
             public void onStopTrackingTouch(SeekBar seekbar) {
-
+                mGroup.endInteraction();
             }
         });
         mWhiteSeekBar.setEnabled(false);
@@ -333,272 +342,112 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             }
 
             public void onStartTrackingTouch(SeekBar seekbar) {
-
+                mGroup.beginInteraction();
             }
 
             public void onStopTrackingTouch(SeekBar seekbar) {
-
+                mGroup.endInteraction();
             }
         });
         mColorSeekBar.setEnabled(false);
-
-        mSunstone.connect();
-    }
-
-    /**
-     * Sets the red color value on Sunstone, and waits for the write to
-     * be verified. This function blocks execution while waiting and should
-     * not be called from the UI thread! Calling this function from the main
-     * UI thread will probably result in ANRs and unpredictable behavior.
-     * @param value 8-bit color value (0-255)
-     * @param wait_time System time in milliseconds to delay until returning.
-     *                  Useful for writes that are done at a fixed frequency.
-     * @return false if the write failed (either because the thread was
-     * interrupted or the write timed out), true if successful
-     */
-    private boolean setRedBlocking(int value, long wait_time){
-        final long write_start = System.currentTimeMillis();
-
-        writeFlag = false;
-        mSunstone.setRedValue(value);
-        while (!writeFlag || System.currentTimeMillis() <= wait_time) {
-            if (Thread.currentThread().isInterrupted()) {
-                return false;
-            } else if (System.currentTimeMillis() > (write_start + WRITE_TIMEOUT_MILLIS)){
-                return false;
-            }
-        }
-
-        return true;
-    }
-
-    /**
-     * Sets the green color value on Sunstone, and waits for the write to
-     * be verified. This function blocks execution while waiting and should
-     * not be called from the UI thread! Calling this function from the main
-     * UI thread will probably result in ANRs and unpredictable behavior.
-     * @param value 8-bit color value (0-255)
-     * @param wait_time System time in milliseconds to delay until returning.
-     *                  Useful for writes that are done at a fixed frequency.
-     * @return false if the write failed (either because the thread was
-     * interrupted or the write timed out), true if successful
-     */
-    private boolean setGreenBlocking(int value, long wait_time){
-        final long write_start = System.currentTimeMillis();
-
-        writeFlag = false;
-        mSunstone.setGreenValue(value);
-        while (!writeFlag || System.currentTimeMillis() <= wait_time) {
-            if (Thread.currentThread().isInterrupted()) {
-                return false;
-            } else if (System.currentTimeMillis() > (write_start + WRITE_TIMEOUT_MILLIS)){
-                return false;
-            }
-        }
-
-        return true;
-    }
-
-    /**
-     * Sets the blue color value on Sunstone, and waits for the write to
-     * be verified. This function blocks execution while waiting and should
-     * not be called from the UI thread! Calling this function from the main
-     * UI thread will probably result in ANRs and unpredictable behavior.
-     * @param value 8-bit color value (0-255)
-     * @param wait_time System time in milliseconds to delay until returning.
-     *                  Useful for writes that are done at a fixed frequency.
-     * @return false if the write failed (either because the thread was
-     * interrupted or the write timed out), true if successful
-     */
-    private boolean setBlueBlocking(int value, long wait_time){
-        final long write_start = System.currentTimeMillis();
-
-        writeFlag = false;
-        mSunstone.setBlueValue(value);
-        while (!writeFlag || System.currentTimeMillis() <= wait_time) {
-            if (Thread.currentThread().isInterrupted()) {
-                return false;
-            } else if (System.currentTimeMillis() > (write_start + WRITE_TIMEOUT_MILLIS)){
-                return false;
-            }
-        }
-
-        return true;
     }
 
     /**
-     * Sets the warm white value on Sunstone, and waits for the write to
-     * be verified. This function blocks execution while waiting and should
-     * not be called from the UI thread! Calling this function from the main
-     * UI thread will probably result in ANRs and unpredictable behavior.
-     * @param value 8-bit color value (0-255)
-     * @param wait_time System time in milliseconds to delay until returning.
-     *                  Useful for writes that are done at a fixed frequency.
-     * @return false if the write failed (either because the thread was
-     * interrupted or the write timed out), true if successful
+     * Connection to the service that owns the lamp connection
      */
-    private boolean setWarmBlocking(int value, long wait_time){
-        final long write_start = System.currentTimeMillis();
-
-        writeFlag = false;
-        mSunstone.setWarmValue(value);
-        while (!writeFlag || System.currentTimeMillis() <= wait_time) {
-            if (Thread.currentThread().isInterrupted()) {
-                return false;
-            } else if (System.currentTimeMillis() > (write_start + WRITE_TIMEOUT_MILLIS)){
-                return false;
-            }
-        }
-
-        return true;
-    }
-
-    /**
-     * Sets the cool white value on Sunstone, and waits for the write to
-     * be verified. This function blocks execution while waiting and should
-     * not be called from the UI thread! Calling this function from the main
-     * UI thread will probably result in ANRs and unpredictable behavior.
-     * @param value 8-bit color value (0-255)
-     * @param wait_time System time in milliseconds to delay until returning.
-     *                  Useful for writes that are done at a fixed frequency.
-     * @return false if the write failed (either because the thread was
-     * interrupted or the write timed out), true if successful
-     */
-    private boolean setCoolBlocking(int value, long wait_time){
-        final long write_start = System.currentTimeMillis();
-
-        writeFlag = false;
-        mSunstone.setCoolValue(value);
-        while (!writeFlag || System.currentTimeMillis() <= wait_time) {
-            if (Thread.currentThread().isInterrupted()) {
-                return false;
-            } else if (System.currentTimeMillis() > (write_start + WRITE_TIMEOUT_MILLIS)){
-                return false;
-            }
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((SunstoneService.LocalBinder) binder).getService();
+            mSunstone = mService.getLamp();
+            mGroup = mService.getRegistry().getGroup();
+            mService.addCallback(MainActivity.this);
+            mService.acquire();
         }
 
-        return true;
-    }
-
-    /**
-     * Sets the color brightness value on Sunstone, and waits for the write to
-     * be verified. This function blocks execution while waiting and should
-     * not be called from the UI thread! Calling this function from the main
-     * UI thread will probably result in ANRs and unpredictable behavior.
-     * @param value 8-bit brightness value (0-255)
-     * @param wait_time System time in milliseconds to delay until returning.
-     *                  Useful for writes that are done at a fixed frequency.
-     * @return false if the write failed (either because the thread was
-     * interrupted or the write timed out), true if successful
-     */
-    private boolean setColorBrightnessBlocking(int value, long wait_time){
-        final long write_start = System.currentTimeMillis();
-
-        writeFlag = false;
-        mSunstone.setColorBrightness(value);
-        while (!writeFlag || System.currentTimeMillis() <= wait_time) {
-            if (Thread.currentThread().isInterrupted()) {
-                return false;
-            } else if (System.currentTimeMillis() > (write_start + WRITE_TIMEOUT_MILLIS)){
-                return false;
-            }
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
         }
-
-        return true;
-    }
+    };
 
     /**
-     * Sets the white brightness value on Sunstone, and waits for the write to
-     * be verified. This function blocks execution while waiting and should
-     * not be called from the UI thread! Calling this function from the main
-     * UI thread will probably result in ANRs and unpredictable behavior.
-     * @param value 8-bit brightness value (0-255)
-     * @param wait_time System time in milliseconds to delay until returning.
-     *                  Useful for writes that are done at a fixed frequency.
-     * @return false if the write failed (either because the thread was
-     * interrupted or the write timed out), true if successful
+     * Sets a channel value on every lamp in the group. The write is not
+     * verified and may not occur if the BLE connection is busy.
+     * @param channel Channel id, see LampChannel
+     * @param value 8-bit value (0-255)
      */
-    private boolean setWhiteBrightnessBlocking(int value, long wait_time){
-        final long write_start = System.currentTimeMillis();
-
-        writeFlag = false;
-        mSunstone.setWhiteBrightness(value);
-        while (!writeFlag || System.currentTimeMillis() <= wait_time) {
-            if (Thread.currentThread().isInterrupted()) {
-                return false;
-            } else if (System.currentTimeMillis() > (write_start + WRITE_TIMEOUT_MILLIS)){
-                return false;
-            }
-        }
-
-        return true;
+    private void setChannel(int channel, int value){
+        final int[] values = LampChannel.newFrame();
+        values[channel] = value;
+        mGroup.setValues(values);
     }
 
     /**
-     * Sets the red color value on Sunstone. The write is not
+     * Sets the red color value on every lamp. The write is not
      * verified and may not occur if the BLE connection is busy.
      * @param value 8-bit color value (0-255)
      */
     private void setRed(int value){
-        mSunstone.setRedValue(value);
+        setChannel(LampChannel.RED, value);
     }
 
     /**
-     * Sets the green color value on Sunstone. The write is not
+     * Sets the green color value on every lamp. The write is not
      * verified and may not occur if the BLE connection is busy.
      * @param value 8-bit color value (0-255)
      */
     private void setGreen(int value){
-        mSunstone.setGreenValue(value);
+        setChannel(LampChannel.GREEN, value);
     }
 
     /**
-     * Sets the blue color value on Sunstone. The write is not
+     * Sets the blue color value on every lamp. The write is not
      * verified and may not occur if the BLE connection is busy.
      * @param value 8-bit color value (0-255)
      */
     private void setBlue(int value){
-        mSunstone.setBlueValue(value);
+        setChannel(LampChannel.BLUE, value);
     }
 
     /**
-     * Sets the warm white value on Sunstone. The write is not
+     * Sets the warm white value on every lamp. The write is not
      * verified and may not occur if the BLE connection is busy.
      * @param value 8-bit value (0-255)
      */
     private void setWarm(int value){
-        mSunstone.setWarmValue(value);
+        setChannel(LampChannel.WARM, value);
     }
 
     /**
-     * Sets the cool white value on Sunstone. The write is not
+     * Sets the cool white value on every lamp. The write is not
      * verified and may not occur if the BLE connection is busy.
      * @param value 8-bit value (0-255)
      */
     private void setCool(int value){
-        mSunstone.setCoolValue(value);
+        setChannel(LampChannel.COOL, value);
     }
 
     /**
-     * Sets the color LED brightness value on Sunstone. The write is not
+     * Sets the color LED brightness value on every lamp. The write is not
      * verified and may not occur if the BLE connection is busy.
      * @param value 8-bit brightness value (0-255)
      */
     private void setColorBrightness(int value){
-        mSunstone.setColorBrightness(value);
+        setChannel(LampChannel.COLOR, value);
     }
 
     /**
-     * Sets the white LED brightness value on Sunstone. The write is not
+     * Sets the white LED brightness value on every lamp. The write is not
      * verified and may not occur if the BLE connection is busy.
      * @param value 8-bit brightness value (0-255)
      */
     private void setWhiteBrightness(int value){
-        mSunstone.setWhiteBrightness(value);
+        setChannel(LampChannel.WHITE, value);
     }
 
     /**
-     * Sets the values for the RGB LEDs on Sunstone, and waits for
+     * Sets the values for the RGB LEDs on every lamp, and waits for
      * the writes to be verified. This function blocks execution while
      * waiting and should not be called from the UI thread! Calling this
      * function from the main UI thread will probably result in ANRs and
@@ -613,16 +462,18 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
      */
     private boolean setRgbBlocking(int redValue, int greenValue, int blueValue, int writePeriod) {
         final long millis = System.currentTimeMillis();
-        boolean result = true;
 
-        result &= setRedBlocking(redValue, 0);
-        result &= setGreenBlocking(greenValue, 0);
-        result &= setBlueBlocking(blueValue, millis + writePeriod);
-        return result;
+        final int[] values = LampChannel.newFrame();
+        values[LampChannel.RED] = redValue;
+        values[LampChannel.GREEN] = greenValue;
+        values[LampChannel.BLUE] = blueValue;
+
+        // All of the values go to every lamp as one batch
+        return awaitWrite(millis + writePeriod, mGroup.setValues(values));
     }
 
     /**
-     * Sets the values for all of the values on Sunstone, and waits for
+     * Sets the values for all of the values on every lamp, and waits for
      * the writes to be verified. This function blocks execution while waiting
      * and should not be called from the UI thread! Calling this function from
      * the main UI thread will probably result in ANRs and unpredictable behavior.
@@ -640,16 +491,56 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
      */
     private boolean setAllBlocking(int red, int green, int blue, int cool, int warm, int color, int white, int writePeriod) {
         final long millis = System.currentTimeMillis();
-        boolean result = true;
-
-        result &= setRedBlocking(red, 0);
-        result &= setGreenBlocking(green, 0);
-        result &= setBlueBlocking(blue, 0);
-        result &= setCoolBlocking(cool, 0);
-        result &= setWarmBlocking(warm, 0);
-        result &= setColorBrightnessBlocking(color, 0);
-        result &= setWhiteBrightnessBlocking(white, millis + writePeriod);
-        return result;
+
+        final int[] values = LampChannel.newFrame();
+        values[LampChannel.RED] = red;
+        values[LampChannel.GREEN] = green;
+        values[LampChannel.BLUE] = blue;
+        values[LampChannel.COOL] = cool;
+        values[LampChannel.WARM] = warm;
+        values[LampChannel.COLOR] = color;
+        values[LampChannel.WHITE] = white;
+
+        // All of the values go to every lamp as one batch
+        return awaitWrite(millis + writePeriod, mGroup.setValues(values));
+    }
+
+    /**
+     * Waits for a write to be verified, then waits out the rest of the write
+     * period. The calling thread sleeps on the write handle instead of polling,
+     * so no CPU is used while waiting. If the thread is interrupted, writes that
+     * haven't been sent yet are cancelled. This function blocks execution and
+     * should not be called from the UI thread!
+     * @param writePeriodEnd System time in milliseconds to delay until returning.
+     * @param write Handle of the write to wait for
+     * @return false if the write failed (either because the thread was
+     * interrupted, the write was cancelled or it timed out), true if successful
+     */
+    private boolean awaitWrite(long writePeriodEnd, Future<Boolean> write){
+        try {
+            if (!write.get(WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+
+            final long idle = writePeriodEnd - System.currentTimeMillis();
+            if (idle > 0) {
+                Thread.sleep(idle);
+            }
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (CancellationException e) {
+            // Dropped on disconnect, or replaced by a newer write
+            return false;
+        } catch (InterruptedException e) {
+            write.cancel(false);
+
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
     }
 
     @Override
@@ -671,6 +562,20 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
             return true;
         }
 
+        if (id == R.id.action_find_lamps) {
+            // Every lamp found joins the group and stays known across restarts
+            if (mService != null) {
+                mService.getRegistry().scan(SunstoneScanner.Profile.INTERACTIVE);
+                Toast.makeText(this, R.string.finding_lamps, Toast.LENGTH_SHORT).show();
+            }
+            return true;
+        }
+
+        if (id == R.id.action_link_stats) {
+            showLinkStats(mLinkStatsView.getVisibility() != View.VISIBLE);
+            return true;
+        }
+
         return super.onOptionsItemSelected(item);
     }
     @Override
@@ -686,19 +591,32 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
     @Override
     protected void onStart() {
         super.onStart();
-        mSunstone.connect();
+
+        // Started as well as bound, so the connection outlives the activity for a while
+        final Intent intent = new Intent(this, SunstoneService.class);
+        startService(intent);
+        bindService(intent, mServiceConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onStop() {
         super.onStop();
-        mSunstone.disconnect();
-        mColorDemoTask.cancel(true);
+        mAnimationEngine.stop();
+
+        if (mService != null) {
+            mService.removeCallback(this);
+            mService.release();
+            mService = null;
+        }
+        unbindService(mServiceConnection);
+        mChannelDispatcher.cancel();
+        showLinkStats(false);
     }
 
     @Override
     protected void onDestroy(){
         super.onDestroy();
+        mAnimationEngine.shutdown();
     }
 
     @Override
@@ -707,14 +625,11 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                // BleSunstone reads the initial values and subscribes to changes on its own
                 Toast.makeText(getApplicationContext(), "Sunstone connected!", Toast.LENGTH_SHORT).show();
-                mSunstone.readRedValue();
-                mSunstone.readGreenValue();
-                mSunstone.readBlueValue();
-                mSunstone.readWarmValue();
-                mSunstone.readCoolValue();
-                mSunstone.readColorBrightness();
-                mSunstone.readWhiteBrightness();
+
+                enableView(mColorDemoButton, !sunriseDemo);
+                enableView(mSunriseDemoButton, !colorDemo);
             }
         });
     }
@@ -779,144 +694,93 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
         });
     }
 
-    private void enableView(View view, boolean enable){
-        if (view != null && (view.isEnabled() != enable))
-            view.setEnabled(enable);
+    /**
+     * Logs how well the last demo kept up with its frame rate
+     */
+    private void logAnimationStats(){
+        Log.i("Sunstone", "Animation frames rendered: " + mAnimationEngine.getFramesRendered()
+                + ", dropped: " + mAnimationEngine.getFramesDropped()
+                + ", fps: " + mAnimationEngine.getAchievedFps());
     }
 
-    @Override
-    public void onWhiteBrightnessChange(final int brightness){
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (mWhiteSeekBar != null){
-                    mWhiteSeekBar.setProgress(brightness & 0xFF);
-
-                    writeFlag = true;
+    /**
+     * Shows or hides the link telemetry overlay
+     * @param show True to show the overlay and keep it up to date
+     */
+    private void showLinkStats(boolean show){
+        mHandler.removeCallbacks(mLinkStatsRunner);
+        mLinkStatsView.setVisibility(show ? View.VISIBLE : View.GONE);
 
-                    // If we're not currently in a demo mode, re-enable the slider
-                    if (!sunriseDemo){
-                        enableView(mWhiteSeekBar, true);
-                    }
-                }
-            }
-        });
+        if (show){
+            mLinkStatsRunner.run();
+        }
     }
 
-
-    @Override
-    public void onColorBrightnessChange(final int brightness){
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (mColorSeekBar != null){
-                    mColorSeekBar.setProgress(brightness & 0xFF);
-
-                    writeFlag = true;
-
-                    // If we're not currently in a demo mode, re-enable the slider
-                    if (!sunriseDemo){
-                        enableView(mColorSeekBar, true);
-                    }
-                }
+    /**
+     * Runnable to refresh the link telemetry overlay
+     */
+    private final Runnable mLinkStatsRunner = new Runnable() {
+        @Override
+        public void run() {
+            if (mSunstone != null){
+                mLinkStatsView.setText(mSunstone.getMetrics().toString());
             }
-        });
-    }
-
-    @Override
-    public void onWarmChange(final int warmValue){
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (mWarmSeekBar != null){
-                    mWarmSeekBar.setProgress(warmValue & 0xFF);
-
-                    writeFlag = true;
+            mHandler.postDelayed(this, LINK_STATS_PERIOD_MILLIS);
+        }
+    };
 
-                    // If we're not currently in a demo mode, re-enable the slider
-                    if (!sunriseDemo){
-                        enableView(mWarmSeekBar, true);
-                    }
-                }
-            }
-        });
+    private void enableView(View view, boolean enable){
+        if (view != null && (view.isEnabled() != enable))
+            view.setEnabled(enable);
     }
 
-    @Override
-    public void onCoolChange(final int coolValue){
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (mCoolSeekBar != null){
-                    mCoolSeekBar.setProgress(coolValue & 0xFF);
-
-                    writeFlag = true;
-
-                    // If we're not currently in a demo mode, re-enable the slider
-                    if (!sunriseDemo){
-                        enableView(mCoolSeekBar, true);
-                    }
-                }
-            }
-        });
+    /**
+     * Gets the slider that shows a channel
+     * @param channel Channel id, see LampChannel
+     * @return The slider, or null if the channel isn't shown
+     */
+    private SeekBar getSeekBar(int channel){
+        switch (channel){
+            case LampChannel.WHITE: return mWhiteSeekBar;
+            case LampChannel.COLOR: return mColorSeekBar;
+            case LampChannel.WARM: return mWarmSeekBar;
+            case LampChannel.COOL: return mCoolSeekBar;
+            case LampChannel.RED: return mRedSeekBar;
+            case LampChannel.GREEN: return mGreenSeekBar;
+            case LampChannel.BLUE: return mBlueSeekBar;
+            default: return null;
+        }
     }
 
     @Override
-    public void onRedChange(final int redValue){
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (mRedSeekBar != null) {
-                    mRedSeekBar.setProgress(redValue & 0xFF);
-
-                    writeFlag = true;
-
-                    // If we're not currently in a demo mode, re-enable the slider
-                    if (!colorDemo && !sunriseDemo) {
-                        enableView(mRedSeekBar, true);
-                    }
-                }
-            }
-        });
+    public void onChannelChange(final int channel, final int value){
+        // Collected and applied once per frame, see mChannelListener
+        mChannelDispatcher.post(channel, value);
     }
 
-    @Override
-    public void onGreenChange(final int greenValue){
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (mGreenSeekBar != null) {
-                    mGreenSeekBar.setProgress(greenValue & 0xFF);
-
-                    writeFlag = true;
-
-                    // If we're not currently in a demo mode, re-enable the slider
-                    if (!colorDemo && !sunriseDemo) {
-                        enableView(mGreenSeekBar, true);
-                    }
+    /**
+     * Applies the channel values that changed during the last frame to the sliders
+     */
+    private final ChannelUpdateDispatcher.Listener mChannelListener = new ChannelUpdateDispatcher.Listener() {
+        @Override
+        public void onChannelsChanged(int[] values) {
+            for (int channel = 0; channel < values.length; channel++){
+                final SeekBar seekBar = getSeekBar(channel);
+                if (seekBar == null || values[channel] == LampChannel.UNCHANGED){
+                    continue;
                 }
-            }
-        });
-    }
 
-    @Override
-    public void onBlueChange(final int blueValue){
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (mBlueSeekBar != null) {
-                    mBlueSeekBar.setProgress(blueValue & 0xFF);
-
-                    writeFlag = true;
+                seekBar.setProgress(values[channel]);
 
-                    // If we're not currently in a demo mode, re-enable the slider
-                    if (!colorDemo && !sunriseDemo) {
-                        enableView(mBlueSeekBar, true);
-                    }
+                // If we're not currently in a demo mode, re-enable the slider.
+                // The color demo only drives the RGB channels.
+                final boolean rgb = channel == LampChannel.RED || channel == LampChannel.GREEN || channel == LampChannel.BLUE;
+                if (!sunriseDemo && !(rgb && colorDemo)){
+                    enableView(seekBar, true);
                 }
             }
-        });
-    }
+        }
+    };
 
 //    public static class TimePickerFragment extends DialogFragment {
 //
@@ -942,83 +806,4 @@ public class MainActivity extends Activity implements BleSunstone.Callback, Time
     public void onTimeSet(TimePicker view, int hourOfDay, int minute) {
 
     }
-
-    /**
-     * Color Demo Mode AsyncTask Class
-     *
-     * Cycles through the RGB spectrum on Sunstone
-     */
-    private class ColorDemoTask extends AsyncTask<Void, Void, Void>{
-
-        private static final int WRITE_PERIOD = 50;
-
-        private int redValue = 0, greenValue = 0, blueValue = 0xFF;
-
-        @Override
-        public Void doInBackground(Void... voids){
-
-            while (!this.isCancelled()) {
-                setRgbBlocking(redValue, greenValue, blueValue, WRITE_PERIOD);
-
-                if (redValue != 0 && blueValue == 0) {
-                    redValue--;
-                    greenValue++;
-                } else if (greenValue != 0 && redValue == 0) {
-                    greenValue--;
-                    blueValue++;
-                } else {
-                    blueValue--;
-                    redValue++;
-                }
-            }
-            return null;
-        }
-    }
-
-    /**
-     * Sunrise Demo Mode AsyncTask Class
-     *
-     * Simulates a sunrise on Sunstone. Starts out as a dim red-orange and
-     * brightens until to a bright sunlight hue.
-     */
-    private class SunriseDemoTask extends AsyncTask<Void, Void, Void>{
-
-        private static final int GREEN_MAX = 0x50;
-        private static final int GREEN_MIN = 0x10;
-        private static final float GREEN_STEP = (float)(GREEN_MAX - GREEN_MIN) / 0xFF;
-        private static final int WRITE_PERIOD = 40;
-
-        private int redValue = 0xFF, blueValue = 0, warmValue = 0xFF, coolValue = 0;
-        private int colorBrightness = 0, whiteBrightness = 0;
-        private float greenValue = 0x10;
-
-        @Override
-        public Void doInBackground(Void... voids){
-
-            setAllBlocking(redValue, (int) greenValue, blueValue, coolValue, warmValue, colorBrightness, whiteBrightness, WRITE_PERIOD);
-            long millis;
-            do {
-                millis = System.currentTimeMillis();
-                setColorBrightnessBlocking(colorBrightness, 0);
-                setGreenBlocking((int)greenValue, millis + WRITE_PERIOD);
-
-                colorBrightness++;
-                greenValue += GREEN_STEP;
-            } while (!this.isCancelled() && colorBrightness < 0xFF);
-
-            do {
-                millis = System.currentTimeMillis();
-                setWhiteBrightnessBlocking(whiteBrightness, millis + WRITE_PERIOD);
-                whiteBrightness++;
-            } while (!this.isCancelled() && whiteBrightness < 0xFF);
-
-            do {
-                millis = System.currentTimeMillis();
-                setCoolBlocking(coolValue, millis + WRITE_PERIOD);
-                coolValue++;
-            } while (!this.isCancelled() && coolValue < 0xFF);
-
-            return null;
-        }
-    }
 }
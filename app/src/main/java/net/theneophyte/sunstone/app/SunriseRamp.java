@@ -0,0 +1,206 @@
+package net.theneophyte.sunstone.app;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.util.Log;
+
+import net.theneophyte.sunstone.app.lighting.AnimationEngine;
+import net.theneophyte.sunstone.app.lighting.FrameSink;
+import net.theneophyte.sunstone.app.lighting.LightingDemos;
+import net.theneophyte.sunstone.app.lighting.Timeline;
+
+import java.util.concurrent.Future;
+
+/**
+ * Wake-up light for alarms with the sunrise option. When the alarm reaches its
+ * high notification state the sunrise is scheduled with AlarmManager, which
+ * wakes the device RAMP_MILLIS before the alarm even if the process has died in
+ * the meantime. Only then is the lamp connection taken and the wake lock held,
+ * and the light reaches full brightness as the alarm fires.
+ *
+ * Only one ramp runs at a time. All methods must be called on the main thread.
+ */
+class SunriseRamp {
+
+    // Length of the sunrise, it starts this long before the alarm fires
+    private static final long RAMP_MILLIS = 20 * 60 * 1000;
+
+    // The ramp moves slowly, one frame a second is plenty
+    private static final long FRAME_PERIOD_MILLIS = 1000;
+
+    // Extra time the wake lock is held past the alarm, in case the last frame is late
+    private static final long WAKE_LOCK_SLACK_MILLIS = 60000;
+
+    private final SunstoneService mService;
+    private final Handler mHandler;
+    private final PowerManager.WakeLock mWakeLock;
+    private final AnimationEngine mEngine = new AnimationEngine(FRAME_PERIOD_MILLIS, 1);
+
+    private long mInstanceId = -1;
+    private long mFireTimeMillis = 0;
+
+    /**
+     * Constructor for SunriseRamp.
+     * @param service Service that owns the lamp connection
+     * @param handler Handler on the main thread
+     */
+    SunriseRamp(SunstoneService service, Handler handler){
+        mService = service;
+        mHandler = handler;
+
+        final PowerManager pm = (PowerManager) service.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Sunstone:sunrise");
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Schedules the sunrise of an alarm, replacing the one scheduled for it before
+     * @param context Context to schedule with
+     * @param instanceId Id of the alarm instance
+     * @param fireTimeMillis Wall clock time the alarm fires at
+     */
+    static void schedule(Context context, long instanceId, long fireTimeMillis){
+        if (fireTimeMillis <= System.currentTimeMillis()){
+            return;
+        }
+
+        Log.d("Sunstone", "Scheduling sunrise for alarm " + instanceId + " at " + (fireTimeMillis - RAMP_MILLIS));
+        final AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        final Intent intent = createBeginIntent(context, instanceId);
+        intent.putExtra(SunstoneService.EXTRA_FIRE_TIME, fireTimeMillis);
+        am.setExact(AlarmManager.RTC_WAKEUP, fireTimeMillis - RAMP_MILLIS,
+                PendingIntent.getBroadcast(context, (int) instanceId, intent, PendingIntent.FLAG_UPDATE_CURRENT));
+    }
+
+    /**
+     * Drops the scheduled sunrise of an alarm
+     * @param context Context to schedule with
+     * @param instanceId Id of the alarm instance
+     */
+    static void cancel(Context context, long instanceId){
+        final PendingIntent pendingIntent = PendingIntent.getBroadcast(context, (int) instanceId,
+                createBeginIntent(context, instanceId), PendingIntent.FLAG_NO_CREATE);
+        if (pendingIntent != null){
+            final AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            am.cancel(pendingIntent);
+            pendingIntent.cancel();
+        }
+    }
+
+    /**
+     * Checks whether the sunrise of an alarm could have begun already
+     * @param fireTimeMillis Wall clock time the alarm fires at
+     * @return True from RAMP_MILLIS before the alarm on
+     */
+    static boolean isDue(long fireTimeMillis){
+        return System.currentTimeMillis() >= fireTimeMillis - RAMP_MILLIS;
+    }
+
+    /**
+     * Connects to the lamp and starts the sunrise for an alarm, replacing the
+     * ramp of any other alarm. The ramp is squeezed into the time left if it
+     * begins late.
+     * @param instanceId Id of the alarm instance
+     * @param fireTimeMillis Wall clock time the alarm fires at
+     */
+    void begin(final long instanceId, long fireTimeMillis){
+        if (instanceId == mInstanceId && fireTimeMillis == mFireTimeMillis){
+            return;
+        }
+        finish();
+
+        final long remaining = fireTimeMillis - System.currentTimeMillis();
+        if (remaining <= 0){
+            return;
+        }
+
+        Log.d("Sunstone", "Sunrise for alarm " + instanceId + " over " + remaining + " ms");
+        mInstanceId = instanceId;
+        mFireTimeMillis = fireTimeMillis;
+
+        // The animation thread stops while the CPU sleeps
+        mWakeLock.acquire(remaining + WAKE_LOCK_SLACK_MILLIS);
+        mService.acquire();
+
+        mEngine.play(LightingDemos.sunrise(remaining), mSink, new AnimationEngine.Listener() {
+            @Override
+            public void onAnimationFinished(Timeline timeline){
+                // Lets go of the lamp, unless another alarm has taken over the ramp since
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        stop(instanceId);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancels the sunrise of an alarm, leaving the light where it is
+     * @param instanceId Id of the alarm instance
+     */
+    void stop(long instanceId){
+        if (instanceId == mInstanceId){
+            finish();
+        }
+    }
+
+    /**
+     * Cancels any ramp and stops the animation thread
+     */
+    void shutdown(){
+        finish();
+        mEngine.shutdown();
+    }
+
+    /**
+     * Stops the ramp and drops the lamp connection and the wake lock
+     */
+    private void finish(){
+        if (mInstanceId < 0){
+            return;
+        }
+
+        mEngine.stop();
+        mService.release();
+        mWakeLock.release();
+
+        mInstanceId = -1;
+        mFireTimeMillis = 0;
+    }
+
+    /**
+     * Creates the intent AlarmManager sends to begin a sunrise. Each alarm instance
+     * gets its own PendingIntent, through the instance id as request code.
+     */
+    private static Intent createBeginIntent(Context context, long instanceId){
+        final Intent intent = new Intent(context, SunriseReceiver.class);
+        intent.setAction(SunstoneService.ACTION_BEGIN_SUNRISE);
+        intent.putExtra(SunstoneService.EXTRA_INSTANCE_ID, instanceId);
+        return intent;
+    }
+
+    /**
+     * Sends the frames to every lamp with acknowledged writes. Streaming would keep
+     * the link at high priority for the whole ramp for no gain at one frame a second.
+     */
+    private final FrameSink mSink = new FrameSink() {
+        @Override
+        public Future<Boolean> writeFrame(int[] frame){
+            return mService.getRegistry().getGroup().writeFrame(frame);
+        }
+
+        @Override
+        public void beginStream(){
+        }
+
+        @Override
+        public void endStream(){
+        }
+    };
+}
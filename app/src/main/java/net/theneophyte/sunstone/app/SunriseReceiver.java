@@ -0,0 +1,17 @@
+package net.theneophyte.sunstone.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.WakefulBroadcastReceiver;
+
+/**
+ * Receives the AlarmManager alarm that begins a sunrise and hands it to
+ * {@link SunstoneService}, holding a wake lock until the service has taken its own.
+ */
+public class SunriseReceiver extends WakefulBroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent){
+        startWakefulService(context, new Intent(intent).setClass(context, SunstoneService.class));
+    }
+}
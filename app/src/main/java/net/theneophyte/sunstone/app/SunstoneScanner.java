@@ -0,0 +1,381 @@
+package net.theneophyte.sunstone.app;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BLE scanner for Sunstone lamps with a choice of scan profiles. Results are
+ * deduplicated by address, keeping the strongest signal seen for each lamp, and
+ * handed to the listener ranked by RSSI so the closest lamp comes first.
+ *
+ * Every profile keeps its own {@link Stats}, so time-to-discover and radio time
+ * can be compared between profiles.
+ *
+ * All methods must be called on the main thread.
+ */
+public class SunstoneScanner {
+
+    /**
+     * How to scan. The duty cycles are the ones the Android stack uses for each
+     * scan mode, and are used to estimate radio time.
+     */
+    public enum Profile {
+
+        // Short full duty cycle burst for connects the user is waiting on
+        INTERACTIVE(ScanSettings.SCAN_MODE_LOW_LATENCY, 0, 5000, 1.0f),
+
+        // Long low duty cycle scan with batched results, for finding lamps while idle
+        BACKGROUND(ScanSettings.SCAN_MODE_LOW_POWER, 5000, 60000, 0.1f);
+
+        final int scanMode;
+        final long reportDelayMillis;
+        final long durationMillis;
+        final float dutyCycle;
+
+        Profile(int scanMode, long reportDelayMillis, long durationMillis, float dutyCycle){
+            this.scanMode = scanMode;
+            this.reportDelayMillis = reportDelayMillis;
+            this.durationMillis = durationMillis;
+            this.dutyCycle = dutyCycle;
+        }
+    }
+
+    /**
+     * Callbacks for scan results, called on the main thread
+     */
+    public interface Listener {
+
+        /**
+         * Called with every lamp seen so far, once some have been found
+         * @param results One result per lamp, strongest signal first
+         */
+        void onLampsFound(List<ScanResult> results);
+
+        /**
+         * Called when the scan ran for the length of its profile
+         * @param profile Profile of the scan that ended
+         * @param found True if any lamp was reported during the scan
+         */
+        void onScanTimeout(Profile profile, boolean found);
+
+        /**
+         * Called when the scan could not be started
+         * @param errorCode One of the ScanCallback SCAN_FAILED constants
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    /**
+     * Discovery statistics of one scan profile
+     */
+    public static class Stats {
+        private final Profile mProfile;
+        private int mScans = 0, mScansWithResults = 0;
+        private long mDiscoverMillis = 0, mScanMillis = 0;
+
+        Stats(Profile profile){
+            mProfile = profile;
+        }
+
+        /**
+         * Gets the number of scans started with the profile
+         * @return Scan count
+         */
+        public int getScans(){
+            return mScans;
+        }
+
+        /**
+         * Gets the number of scans that found at least one lamp
+         * @return Scan count
+         */
+        public int getScansWithResults(){
+            return mScansWithResults;
+        }
+
+        /**
+         * Gets the mean time from starting a scan to the first lamp being reported
+         * @return Time in milliseconds, 0 if no scan found anything yet
+         */
+        public long getAverageDiscoverMillis(){
+            return mScansWithResults == 0 ? 0 : mDiscoverMillis / mScansWithResults;
+        }
+
+        /**
+         * Gets the total time spent scanning with the profile
+         * @return Time in milliseconds
+         */
+        public long getScanMillis(){
+            return mScanMillis;
+        }
+
+        /**
+         * Estimates the time the radio actually spent listening, which is what
+         * the battery pays for
+         * @return Time in milliseconds
+         */
+        public long getRadioMillis(){
+            return (long) (mScanMillis * mProfile.dutyCycle);
+        }
+
+        @Override
+        public String toString(){
+            return mProfile + ": " + mScansWithResults + "/" + mScans + " scans found lamps"
+                    + ", discover " + getAverageDiscoverMillis() + " ms"
+                    + ", scanning " + mScanMillis + " ms"
+                    + ", radio " + getRadioMillis() + " ms";
+        }
+    }
+
+    // Time to keep listening after the first lamp shows up, so a closer one gets a chance to be heard
+    private static final long RANKING_WINDOW_MILLIS = 300;
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final List<ScanFilter> mFilters;
+    private final Map<Profile, Stats> mStats = new LinkedHashMap<Profile, Stats>();
+
+    // Strongest result per address for the current scan
+    private final Map<String, ScanResult> mResults = new LinkedHashMap<String, ScanResult>();
+
+    private Profile mProfile = null;
+    private long mStartMillis = 0;
+    private boolean mReported = false;
+    private boolean mReportPending = false;
+
+    /**
+     * Constructor for SunstoneScanner.
+     * @param adapter Bluetooth adapter to scan with
+     * @param handler UI thread handler
+     * @param listener Receives the results
+     */
+    public SunstoneScanner(BluetoothAdapter adapter, Handler handler, Listener listener){
+        mBluetoothAdapter = adapter;
+        mHandler = handler;
+        mListener = listener;
+
+        mFilters = new ArrayList<ScanFilter>();
+        mFilters.add((new ScanFilter.Builder()).setServiceUuid(
+                new ParcelUuid(BleSunstone.SUNSTONE_SERVICE_UUID),
+                new ParcelUuid(BleSunstone.SUNSTONE_SERVICE_UUID_MASK)
+        ).build());
+
+        for (Profile profile : Profile.values()){
+            mStats.put(profile, new Stats(profile));
+        }
+    }
+
+    /**
+     * Starts a scan, replacing one that is already running with a different profile
+     * @param profile How to scan
+     */
+    public void start(Profile profile){
+        if (mProfile == profile){
+            return;
+        }
+        stop();
+
+        long reportDelay = profile.reportDelayMillis;
+        if (reportDelay > 0 && !mBluetoothAdapter.isOffloadedScanBatchingSupported()){
+            // Without hardware batching the stack would wake us up for every advertisement anyway
+            reportDelay = 0;
+        }
+
+        final ScanSettings settings = (new ScanSettings.Builder())
+                .setScanMode(profile.scanMode)
+                .setReportDelay(reportDelay)
+                .build();
+
+        Log.d("Sunstone", "Starting " + profile + " scan...");
+        mProfile = profile;
+        mStartMillis = SystemClock.elapsedRealtime();
+        mReported = false;
+        mReportPending = false;
+        mResults.clear();
+        mStats.get(profile).mScans++;
+
+        mHandler.postDelayed(mTimeoutRunner, profile.durationMillis);
+        mBluetoothAdapter.getBluetoothLeScanner().startScan(mFilters, settings, mScanCallback);
+    }
+
+    /**
+     * Stops the current scan without notifying the listener
+     */
+    public void stop(){
+        if (mProfile == null){
+            return;
+        }
+
+        Log.d("Sunstone", "Stopping scan...");
+        mHandler.removeCallbacks(mTimeoutRunner);
+        mHandler.removeCallbacks(mReportRunner);
+        mReportPending = false;
+        mBluetoothAdapter.getBluetoothLeScanner().stopScan(mScanCallback);
+
+        final Stats stats = mStats.get(mProfile);
+        stats.mScanMillis += SystemClock.elapsedRealtime() - mStartMillis;
+        Log.d("Sunstone", stats.toString());
+
+        mProfile = null;
+    }
+
+    /**
+     * Checks whether a scan is running
+     * @return True while scanning
+     */
+    public boolean isScanning(){
+        return mProfile != null;
+    }
+
+    /**
+     * Gets the discovery statistics of a profile
+     * @param profile Scan profile
+     * @return Statistics since the scanner was created
+     */
+    public Stats getStats(Profile profile){
+        return mStats.get(profile);
+    }
+
+    /**
+     * Adds a result, keeping only the strongest one per address
+     * @return True if the result belongs to a Sunstone lamp
+     */
+    private boolean addResult(ScanResult result){
+        final ScanRecord record = result.getScanRecord();
+        if (record == null || record.getServiceUuids() == null){
+            return false;
+        }
+
+        // The filter only matches on the masked UUID, make sure this is really Sunstone
+        if (!record.getServiceUuids().contains(new ParcelUuid(BleSunstone.SUNSTONE_SERVICE_UUID))){
+            return false;
+        }
+
+        final String address = result.getDevice().getAddress();
+        final ScanResult known = mResults.get(address);
+        if (known == null || result.getRssi() > known.getRssi()){
+            mResults.put(address, result);
+        }
+        return true;
+    }
+
+    /**
+     * Hands the lamps found so far to the listener, closest first
+     */
+    private void report(){
+        if (mProfile == null || mResults.isEmpty()){
+            return;
+        }
+
+        if (!mReported){
+            final Stats stats = mStats.get(mProfile);
+            stats.mScansWithResults++;
+            stats.mDiscoverMillis += SystemClock.elapsedRealtime() - mStartMillis;
+            mReported = true;
+        }
+
+        final List<ScanResult> ranked = new ArrayList<ScanResult>(mResults.values());
+        Collections.sort(ranked, new Comparator<ScanResult>() {
+            @Override
+            public int compare(ScanResult lhs, ScanResult rhs) {
+                return rhs.getRssi() - lhs.getRssi();
+            }
+        });
+
+        mListener.onLampsFound(ranked);
+    }
+
+    /**
+     * Runnable to report the ranked lamps once the ranking window is over
+     */
+    private final Runnable mReportRunner = new Runnable() {
+        @Override
+        public void run() {
+            mReportPending = false;
+            report();
+        }
+    };
+
+    /**
+     * Runnable to end a scan that ran for the length of its profile
+     */
+    private final Runnable mTimeoutRunner = new Runnable() {
+        @Override
+        public void run() {
+            final Profile profile = mProfile;
+            final boolean found = mReported;
+            stop();
+            mListener.onScanTimeout(profile, found);
+        }
+    };
+
+    /**
+     * Callback for the BLE scanner
+     */
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            super.onScanResult(callbackType, result);
+
+            if (mProfile == null || !addResult(result)){
+                return;
+            }
+
+            // Give other lamps a moment to be heard before picking one. The window starts with
+            // the first result, later ones mustn't push it back or a lamp that keeps advertising
+            // would never be reported.
+            if (!mReported){
+                if (!mReportPending){
+                    mReportPending = true;
+                    mHandler.postDelayed(mReportRunner, RANKING_WINDOW_MILLIS);
+                }
+            } else {
+                report();
+            }
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            super.onBatchScanResults(results);
+
+            if (mProfile == null){
+                return;
+            }
+
+            boolean found = false;
+            for (ScanResult result : results){
+                found |= addResult(result);
+            }
+
+            // A batch already covers a whole report delay, so rank it right away
+            if (found){
+                report();
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            super.onScanFailed(errorCode);
+
+            Log.d("Sunstone", "Scan failed with error " + errorCode);
+            stop();
+            mListener.onScanFailed(errorCode);
+        }
+    };
+}
@@ -0,0 +1,318 @@
+package net.theneophyte.sunstone.app;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.v4.content.WakefulBroadcastReceiver;
+import android.util.Log;
+
+import net.theneophyte.sunstone.app.protocol.LinkMetrics;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Service that owns the connection to Sunstone, so the lamp UI, the alarms and
+ * the widgets all share one warm GATT connection instead of setting up their own.
+ *
+ * Everything that needs the lamp holds a reference for as long as it needs it.
+ * Bound clients call {@link #acquire()} and {@link #release()}, components that
+ * can't bind (alarms, widgets, receivers) use {@link #acquire(Context)} and
+ * {@link #release(Context)} instead. Once the last reference is released the link
+ * is kept up for IDLE_DISCONNECT_MILLIS, so leaving the app and coming right back
+ * doesn't cost a reconnect. The link is then suspended, and the GATT clients are
+ * kept for another SUSPENDED_CLOSE_MILLIS, so a reconnect in that time skips
+ * service discovery. Only after that is the service stopped and every client closed.
+ *
+ * All methods must be called on the main thread.
+ */
+public class SunstoneService extends Service implements BleSunstone.Callback {
+
+    private static final String ACTION_ACQUIRE = "net.theneophyte.sunstone.app.ACQUIRE_LAMP";
+    private static final String ACTION_RELEASE = "net.theneophyte.sunstone.app.RELEASE_LAMP";
+    static final String ACTION_BEGIN_SUNRISE = "net.theneophyte.sunstone.app.BEGIN_SUNRISE";
+    private static final String ACTION_STOP_SUNRISE = "net.theneophyte.sunstone.app.STOP_SUNRISE";
+
+    static final String EXTRA_INSTANCE_ID = "instance_id";
+    static final String EXTRA_FIRE_TIME = "fire_time";
+
+    // Time the link stays up after the last reference has been released
+    private static final long IDLE_DISCONNECT_MILLIS = 30000;
+
+    // Time suspended lamps keep their GATT clients before the service stops
+    private static final long SUSPENDED_CLOSE_MILLIS = 15 * 60 * 1000;
+
+    /**
+     * Binder for clients in the same process
+     */
+    public class LocalBinder extends Binder {
+
+        /**
+         * Gets the service behind this binder
+         * @return The SunstoneService
+         */
+        public SunstoneService getService(){
+            return SunstoneService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final List<BleSunstone.Callback> mCallbacks = new CopyOnWriteArrayList<BleSunstone.Callback>();
+    private Handler mHandler;
+    private BleSunstone mSunstone;
+    private LampRegistry mRegistry;
+    private SunriseRamp mSunrise;
+    private int mRefCount = 0;
+
+    // True from the last release until the next acquire, while mIdleRunner or mCloseRunner will stop the service
+    private boolean mIdling = false;
+
+    /**
+     * Takes a reference on the lamp connection from a component that can't bind
+     * to the service. Every call must be matched by {@link #release(Context)}.
+     * @param context Context to start the service with
+     */
+    public static void acquire(Context context){
+        final Intent intent = new Intent(context, SunstoneService.class);
+        intent.setAction(ACTION_ACQUIRE);
+        context.startService(intent);
+    }
+
+    /**
+     * Drops a reference taken with {@link #acquire(Context)}
+     * @param context Context to start the service with
+     */
+    public static void release(Context context){
+        final Intent intent = new Intent(context, SunstoneService.class);
+        intent.setAction(ACTION_RELEASE);
+        context.startService(intent);
+    }
+
+    /**
+     * Schedules the sunrise of an alarm, so the light reaches full brightness as
+     * the alarm fires. The service only starts and connects once the sunrise begins.
+     * @param context Context to schedule with
+     * @param instanceId Id of the alarm instance
+     * @param fireTimeMillis Wall clock time the alarm fires at
+     */
+    public static void startSunrise(Context context, long instanceId, long fireTimeMillis){
+        SunriseRamp.schedule(context, instanceId, fireTimeMillis);
+    }
+
+    /**
+     * Cancels the sunrise of an alarm started with {@link #startSunrise(Context, long, long)}.
+     * The service is only started if the sunrise may be running already.
+     * @param context Context to start the service with
+     * @param instanceId Id of the alarm instance
+     * @param fireTimeMillis Wall clock time the alarm fires at
+     */
+    public static void stopSunrise(Context context, long instanceId, long fireTimeMillis){
+        SunriseRamp.cancel(context, instanceId);
+        if (!SunriseRamp.isDue(fireTimeMillis)){
+            return;
+        }
+
+        final Intent intent = new Intent(context, SunstoneService.class);
+        intent.setAction(ACTION_STOP_SUNRISE);
+        intent.putExtra(EXTRA_INSTANCE_ID, instanceId);
+        context.startService(intent);
+    }
+
+    @Override
+    public void onCreate(){
+        super.onCreate();
+
+        mHandler = new Handler(Looper.getMainLooper());
+        mSunstone = new BleSunstone(getApplicationContext(), mHandler, this);
+        mRegistry = new LampRegistry(getApplicationContext(), mHandler, mSunstone);
+        mSunrise = new SunriseRamp(this, mHandler);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId){
+        final String action = intent != null ? intent.getAction() : null;
+
+        if (ACTION_ACQUIRE.equals(action)){
+            acquire();
+        } else if (ACTION_RELEASE.equals(action)){
+            release();
+        } else if (ACTION_BEGIN_SUNRISE.equals(action)){
+            mSunrise.begin(intent.getLongExtra(EXTRA_INSTANCE_ID, -1), intent.getLongExtra(EXTRA_FIRE_TIME, 0));
+
+            // The ramp holds its own wake lock now
+            WakefulBroadcastReceiver.completeWakefulIntent(intent);
+        } else if (ACTION_STOP_SUNRISE.equals(action)){
+            mSunrise.stop(intent.getLongExtra(EXTRA_INSTANCE_ID, -1));
+        }
+
+        // Started without anything holding the lamp, nothing else would ever stop the service
+        if (mRefCount == 0 && !mIdling){
+            stopSelf(startId);
+        }
+
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent){
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy(){
+        super.onDestroy();
+
+        mSunrise.shutdown();
+        mHandler.removeCallbacks(mIdleRunner);
+        mHandler.removeCallbacks(mCloseRunner);
+        mCallbacks.clear();
+        mRegistry.disconnectAll();
+    }
+
+    /**
+     * Gets the shared lamp connection
+     * @return The BleSunstone owned by this service
+     */
+    public BleSunstone getLamp(){
+        return mSunstone;
+    }
+
+    /**
+     * Gets every lamp connection, for driving several lamps at once
+     * @return The lamp registry
+     */
+    public LampRegistry getRegistry(){
+        return mRegistry;
+    }
+
+    /**
+     * Takes a reference on the lamp connections and connects if needed.
+     * Every call must be matched by {@link #release()}.
+     */
+    public void acquire(){
+        mRefCount++;
+        mIdling = false;
+        mHandler.removeCallbacks(mIdleRunner);
+        mHandler.removeCallbacks(mCloseRunner);
+        mRegistry.connectAll();
+    }
+
+    /**
+     * Drops a reference on the lamp connection. The link goes down a while after
+     * the last reference has been dropped.
+     */
+    public void release(){
+        if (mRefCount == 0){
+            Log.d("Sunstone", "Unbalanced release of the lamp connection");
+            return;
+        }
+
+        if (--mRefCount == 0){
+            mIdling = true;
+            mHandler.postDelayed(mIdleRunner, IDLE_DISCONNECT_MILLIS);
+        }
+    }
+
+    /**
+     * Registers for connection and value changes of the lamp
+     * @param callback Callback to add
+     */
+    public void addCallback(BleSunstone.Callback callback){
+        if (!mCallbacks.contains(callback)){
+            mCallbacks.add(callback);
+        }
+    }
+
+    /**
+     * Unregisters a callback added with {@link #addCallback(BleSunstone.Callback)}
+     * @param callback Callback to remove
+     */
+    public void removeCallback(BleSunstone.Callback callback){
+        mCallbacks.remove(callback);
+    }
+
+    /**
+     * Dumps the link telemetry of every lamp, with
+     * adb shell dumpsys activity service net.theneophyte.sunstone.app/.SunstoneService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args){
+        writer.println("References: " + mRefCount);
+
+        for (BleSunstone lamp : mRegistry.getLamps()){
+            final LinkMetrics.Snapshot metrics = lamp.getMetrics();
+
+            writer.println();
+            writer.println("Lamp " + lamp.getAddress() + (lamp.isConnected() ? " (connected)" : ""));
+            writer.println(metrics);
+            writer.println("Write round trip times:");
+            writer.print(metrics.formatHistogram());
+        }
+    }
+
+    /**
+     * Runnable to drop the link once nobody has needed it for a while. The GATT
+     * clients stay open, so reconnecting reuses the services they discovered.
+     */
+    private final Runnable mIdleRunner = new Runnable() {
+        @Override
+        public void run() {
+            Log.d("Sunstone", "Lamp connection idle, suspending...");
+            mRegistry.suspendAll();
+            mHandler.postDelayed(mCloseRunner, SUSPENDED_CLOSE_MILLIS);
+        }
+    };
+
+    /**
+     * Runnable to stop the service once the lamps have been suspended for long
+     * enough that keeping their GATT clients around isn't worth it
+     */
+    private final Runnable mCloseRunner = new Runnable() {
+        @Override
+        public void run() {
+            Log.d("Sunstone", "Lamp connection suspended for too long, closing...");
+            stopSelf();
+        }
+    };
+
+    @Override
+    public void onConnectFailed(){
+        for (BleSunstone.Callback callback : mCallbacks){
+            callback.onConnectFailed();
+        }
+    }
+
+    @Override
+    public void onConnected(){
+        for (BleSunstone.Callback callback : mCallbacks){
+            callback.onConnected();
+        }
+    }
+
+    @Override
+    public void onDisconnected(){
+        for (BleSunstone.Callback callback : mCallbacks){
+            callback.onDisconnected();
+        }
+    }
+
+    @Override
+    public void onConnectionTimeout(){
+        for (BleSunstone.Callback callback : mCallbacks){
+            callback.onConnectionTimeout();
+        }
+    }
+
+    @Override
+    public void onChannelChange(final int channel, final int value){
+        for (BleSunstone.Callback callback : mCallbacks){
+            callback.onChannelChange(channel, value);
+        }
+    }
+}
@@ -739,6 +739,7 @@ public class AlarmClockFragment extends Fragment implements
             Button[] dayButtons = new Button[7];
             CheckBox vibrate;
             CheckBox increasingVolume;
+            CheckBox sunrise;
             TextView ringtone;
             TextView profile;
             View hairLine;
@@ -885,6 +886,7 @@ public class AlarmClockFragment extends Fragment implements
             }
             holder.vibrate = (CheckBox) view.findViewById(R.id.vibrate_onoff);
             holder.increasingVolume = (CheckBox) view.findViewById(R.id.increasing_volume_onoff);
+            holder.sunrise = (CheckBox) view.findViewById(R.id.sunrise_onoff);
             holder.ringtone = (TextView) view.findViewById(R.id.choose_ringtone);
             holder.profile = (TextView) view.findViewById(R.id.choose_profile);
 
@@ -1218,6 +1220,17 @@ public class AlarmClockFragment extends Fragment implements
                     asyncUpdateAlarm(alarm, false);
                 }
             });
+
+            itemHolder.sunrise.setVisibility(View.VISIBLE);
+            itemHolder.sunrise.setChecked(alarm.sunrise);
+            itemHolder.sunrise.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    final boolean checked = ((CheckBox) v).isChecked();
+                    alarm.sunrise = checked;
+                    asyncUpdateAlarm(alarm, false);
+                }
+            });
         }
 
         // Sets the alpha of the digital time display. This gives a visual effect
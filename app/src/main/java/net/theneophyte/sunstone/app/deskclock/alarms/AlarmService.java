@@ -36,6 +36,7 @@ import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 
 import net.theneophyte.sunstone.app.R;
+import net.theneophyte.sunstone.app.SunstoneService;
 import net.theneophyte.sunstone.app.deskclock.AlarmAlertWakeLock;
 import net.theneophyte.sunstone.app.deskclock.LogUtils;
 import net.theneophyte.sunstone.app.deskclock.SettingsActivity;
@@ -134,6 +135,9 @@ public class AlarmService extends Service {
         AlarmAlertWakeLock.acquireCpuWakeLock(this);
         mCurrentAlarm = instance;
 
+        // Keep the lamp connected for as long as the alarm is firing
+        SunstoneService.acquire(this);
+
         switch (mVolumeBehavior) {
             case SettingsActivity.VOLUME_BEHAVIOR_SNOOZE:
             case SettingsActivity.VOLUME_BEHAVIOR_DISMISS:
@@ -170,6 +174,7 @@ public class AlarmService extends Service {
         sendBroadcast(new Intent(ALARM_DONE_ACTION));
         mCurrentAlarm = null;
         detachListeners();
+        SunstoneService.release(this);
         AlarmAlertWakeLock.releaseCpuLock();
     }
 
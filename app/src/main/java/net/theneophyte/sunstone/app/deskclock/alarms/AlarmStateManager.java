@@ -18,7 +18,6 @@ package net.theneophyte.sunstone.app.deskclock.alarms;
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.ActivityNotFoundException;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
@@ -32,6 +31,7 @@ import android.widget.Toast;
 import android.telephony.TelephonyManager;
 
 import net.theneophyte.sunstone.app.R;
+import net.theneophyte.sunstone.app.SunstoneService;
 import net.theneophyte.sunstone.app.deskclock.AlarmAlertWakeLock;
 import net.theneophyte.sunstone.app.deskclock.AlarmClockFragment;
 import net.theneophyte.sunstone.app.deskclock.AlarmUtils;
@@ -39,13 +39,15 @@ import net.theneophyte.sunstone.app.deskclock.AsyncHandler;
 import net.theneophyte.sunstone.app.deskclock.DeskClock;
 import net.theneophyte.sunstone.app.deskclock.LogUtils;
 import net.theneophyte.sunstone.app.deskclock.SettingsActivity;
-import net.theneophyte.sunstone.app.deskclock.Utils;
 import net.theneophyte.sunstone.app.deskclock.provider.Alarm;
 import net.theneophyte.sunstone.app.deskclock.provider.AlarmInstance;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -120,9 +122,6 @@ public final class AlarmStateManager extends BroadcastReceiver {
     // key to to retrieve pending alarm set
     public static final String ALARM_PENDING_ALARM_KEY = "pending.alarm.key";
 
-    // Intent category tag used when schedule state change intents in alarm manager.
-    public static final String ALARM_MANAGER_TAG = "ALARM_MANAGER";
-
     // Buffer time in seconds to fire alarm instead of marking it missed.
     public static final int ALARM_FIRE_BUFFER = 15;
 
@@ -133,6 +132,10 @@ public final class AlarmStateManager extends BroadcastReceiver {
             "org.codeaurora.poweronalert.action.ALARM_POWER_OFF";
     private static final String FIRST_ALARM_FLAG = "first_alarm";
 
+    // Instance writes held back while fixAlarmInstances registers every instance again
+    private static final ThreadLocal<Map<Long, AlarmInstance>> sPendingWrites =
+            new ThreadLocal<Map<Long, AlarmInstance>>();
+
     public static int getGlobalIntentId(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getInt(ALARM_GLOBAL_ID_EXTRA, -1);
@@ -160,14 +163,8 @@ public final class AlarmStateManager extends BroadcastReceiver {
      * @param context application context
      */
     public static void updateNextAlarm(Context context) {
-        AlarmInstance nextAlarm = null;
         ContentResolver cr = context.getContentResolver();
-        String activeAlarmQuery = AlarmInstance.ALARM_STATE + "<" + AlarmInstance.FIRED_STATE;
-        for (AlarmInstance instance : AlarmInstance.getInstances(cr, activeAlarmQuery)) {
-            if (nextAlarm == null || instance.getAlarmTime().before(nextAlarm.getAlarmTime())) {
-                nextAlarm = instance;
-            }
-        }
+        AlarmInstance nextAlarm = AlarmInstance.getNextInstance(cr);
         AlarmNotifications.registerNextAlarmWithAlarmManager(context, nextAlarm);
     }
 
@@ -211,6 +208,35 @@ public final class AlarmStateManager extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Checks whether the parent alarm of an instance runs a sunrise on the lamp.
+     *
+     * @param contentResolver to read the alarm with
+     * @param instance to check
+     * @return true if the instance has a parent alarm with sunrise set
+     */
+    private static boolean hasSunrise(ContentResolver contentResolver, AlarmInstance instance) {
+        Alarm alarm = instance.mAlarmId != null
+                ? Alarm.getAlarm(contentResolver, instance.mAlarmId) : null;
+        return alarm != null && alarm.sunrise;
+    }
+
+    /**
+     * Writes an instance to the db, or holds the write back for the batch at the end of
+     * {@link #fixAlarmInstances(Context)} if one is being collected on this thread.
+     *
+     * @param contentResolver to write with
+     * @param instance to write
+     */
+    private static void writeInstance(ContentResolver contentResolver, AlarmInstance instance) {
+        Map<Long, AlarmInstance> pendingWrites = sPendingWrites.get();
+        if (pendingWrites != null) {
+            pendingWrites.put(instance.mId, instance);
+        } else {
+            AlarmInstance.updateInstance(contentResolver, instance);
+        }
+    }
+
     /**
      * Utility method to create a proper change state intent.
      *
@@ -234,7 +260,8 @@ public final class AlarmStateManager extends BroadcastReceiver {
     }
 
     /**
-     * Schedule alarm instance state changes with {@link AlarmManager}.
+     * Schedule alarm instance state changes. All pending state changes share a single
+     * {@link AlarmManager} wakeup, see {@link AlarmTimerQueue}.
      *
      * @param context application context
      * @param time to trigger state change
@@ -246,51 +273,18 @@ public final class AlarmStateManager extends BroadcastReceiver {
         long timeInMillis = time.getTimeInMillis();
         LogUtils.v("Scheduling state change " + newState + " to instance " + instance.mId +
                 " at " + AlarmUtils.getFormattedTime(context, time) + " (" + timeInMillis + ")");
-        Intent stateChangeIntent = createStateChangeIntent(context, ALARM_MANAGER_TAG, instance,
-                newState);
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, instance.hashCode(),
-                stateChangeIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        Intent stateChangePowerOffIntent = createStateChangeIntent(context, ALARM_MANAGER_TAG,
-                instance, AlarmInstance.POWER_OFF_ALARM_STATE);
-        PendingIntent pendingPowerOffIntent = PendingIntent.getBroadcast(context,
-                instance.hashCode(), stateChangePowerOffIntent, PendingIntent.FLAG_ONE_SHOT);
-        if (Utils.isKitKatOrLater()) {
-            am.setExact(AlarmManager.RTC_WAKEUP, timeInMillis, pendingIntent);
-
-//            am.setExact(AlarmManager.RTC_POWEROFF_WAKEUP, instance.getAlarmTime().getTimeInMillis(),
-//                    pendingPowerOffIntent);
-        } else {
-            am.set(AlarmManager.RTC_WAKEUP, timeInMillis, pendingIntent);
-//            am.set(AlarmManager.RTC_POWEROFF_WAKEUP, instance.getAlarmTime().getTimeInMillis(),
-//                    pendingPowerOffIntent);
-        }
+        AlarmTimerQueue.schedule(context, instance, time, newState);
     }
 
     /**
-     * Cancel all {@link AlarmManager} timers for instance.
+     * Cancel the pending state change of an instance.
      *
      * @param context application context
-     * @param instance to disable all {@link AlarmManager} timers
+     * @param instance to cancel the state change for
      */
     private static void cancelScheduledInstance(Context context, AlarmInstance instance) {
         LogUtils.v("Canceling instance " + instance.mId + " timers");
-
-        // Create a PendingIntent that will match any one set for this instance
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, instance.hashCode(),
-                createStateChangeIntent(context, ALARM_MANAGER_TAG, instance, null),
-                PendingIntent.FLAG_UPDATE_CURRENT);
-
-        PendingIntent pendingPowerOffIntent = PendingIntent.getBroadcast(context,
-                instance.hashCode(),
-                createStateChangeIntent(context, ALARM_MANAGER_TAG, instance, null),
-                PendingIntent.FLAG_ONE_SHOT);
-
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-
-        am.cancel(pendingPowerOffIntent);
-        am.cancel(pendingIntent);
+        AlarmTimerQueue.cancel(context, instance);
     }
 
 
@@ -308,7 +302,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
         // Update alarm in db
         ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.SILENT_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        writeInstance(contentResolver, instance);
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.clearNotification(context, instance);
@@ -330,7 +324,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
         // Update alarm state in db
         ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.LOW_NOTIFICATION_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        writeInstance(contentResolver, instance);
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.showLowPriorityNotification(context, instance);
@@ -352,7 +346,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
         // Update alarm state in db
         ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.HIDE_NOTIFICATION_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        writeInstance(contentResolver, instance);
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.clearNotification(context, instance);
@@ -374,12 +368,18 @@ public final class AlarmStateManager extends BroadcastReceiver {
         // Update alarm state in db
         ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.HIGH_NOTIFICATION_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        writeInstance(contentResolver, instance);
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.showHighPriorityNotification(context, instance);
         scheduleInstanceStateChange(context, instance.getAlarmTime(),
                 instance, AlarmInstance.FIRED_STATE);
+
+        // Schedule the sunrise, so the light reaches full brightness as the alarm fires
+        if (hasSunrise(contentResolver, instance)) {
+            SunstoneService.startSunrise(context, instance.mId,
+                    instance.getAlarmTime().getTimeInMillis());
+        }
     }
 
     /**
@@ -396,7 +396,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
         // Update alarm state in db
         ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.FIRED_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        writeInstance(contentResolver, instance);
 
         // Start the alarm and schedule timeout timer for it
         AlarmService.startAlarm(context, instance);
@@ -434,7 +434,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
                 + AlarmUtils.getFormattedTime(context, newAlarmTime));
         instance.setAlarmTime(newAlarmTime);
         instance.mAlarmState = AlarmInstance.SNOOZE_STATE;
-        AlarmInstance.updateInstance(context.getContentResolver(), instance);
+        writeInstance(context.getContentResolver(), instance);
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.showSnoozeNotification(context, instance);
@@ -482,7 +482,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
         // Update alarm state
         ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.MISSED_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        writeInstance(contentResolver, instance);
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.showMissedNotification(context, instance);
@@ -514,6 +514,10 @@ public final class AlarmStateManager extends BroadcastReceiver {
         }
 
         // Delete instance as it is not needed anymore
+        Map<Long, AlarmInstance> pendingWrites = sPendingWrites.get();
+        if (pendingWrites != null) {
+            pendingWrites.remove(instance.mId);
+        }
         AlarmInstance.deleteInstance(context.getContentResolver(), instance.mId);
 
         // Instance is not valid anymore, so find next alarm that will fire and notify system
@@ -538,6 +542,11 @@ public final class AlarmStateManager extends BroadcastReceiver {
     public static void unregisterInstance(Context context, AlarmInstance instance) {
         // Stop alarm if this instance is firing it
         AlarmService.stopAlarm(context, instance);
+        if (instance.mAlarmState == AlarmInstance.HIGH_NOTIFICATION_STATE
+                && hasSunrise(context.getContentResolver(), instance)) {
+            SunstoneService.stopSunrise(context, instance.mId,
+                    instance.getAlarmTime().getTimeInMillis());
+        }
         AlarmNotifications.clearNotification(context, instance);
         cancelScheduledInstance(context, instance);
     }
@@ -663,8 +672,8 @@ public final class AlarmStateManager extends BroadcastReceiver {
         List<AlarmInstance> instances = AlarmInstance.getInstancesByAlarmId(cr, alarmId);
         for (AlarmInstance instance : instances) {
             unregisterInstance(context, instance);
-            AlarmInstance.deleteInstance(context.getContentResolver(), instance.mId);
         }
+        AlarmInstance.deleteInstancesByAlarmId(cr, alarmId);
         updateNextAlarm(context);
     }
 
@@ -677,9 +686,30 @@ public final class AlarmStateManager extends BroadcastReceiver {
         // Register all instances after major time changes or when phone restarts
         // TODO: Refactor this code to not use the overloaded registerInstance method.
         ContentResolver contentResolver = context.getContentResolver();
-        for (AlarmInstance instance : AlarmInstance.getInstances(contentResolver, null)) {
-            AlarmStateManager.registerInstance(context, instance, false);
+        List<AlarmInstance> instances = AlarmInstance.getInstances(contentResolver, null);
+
+        // Every instance is written once, in one batch, with whatever state it ends up in.
+        // Instances whose state doesn't change are written too: the same local time is a
+        // different UTC time after a time zone change.
+        Map<Long, AlarmInstance> pendingWrites = new LinkedHashMap<Long, AlarmInstance>();
+        for (AlarmInstance instance : instances) {
+            pendingWrites.put(instance.mId, instance);
         }
+
+        // Every instance schedules its next state change again, the wakeup is set once at the end
+        sPendingWrites.set(pendingWrites);
+        AlarmTimerQueue.reset();
+        try {
+            for (AlarmInstance instance : instances) {
+                AlarmStateManager.registerInstance(context, instance, false);
+            }
+        } finally {
+            AlarmTimerQueue.endUpdate(context);
+            sPendingWrites.remove();
+        }
+
+        AlarmInstance.updateInstances(contentResolver,
+                new ArrayList<AlarmInstance>(pendingWrites.values()));
         AlarmStateManager.updateNextAlarm(context);
     }
 
@@ -746,7 +776,9 @@ public final class AlarmStateManager extends BroadcastReceiver {
     private void handleIntent(Context context, Intent intent) {
         final String action = intent.getAction();
         LogUtils.v("AlarmStateManager received intent " + intent);
-        if (CHANGE_STATE_ACTION.equals(action)) {
+        if (AlarmTimerQueue.TIMER_ACTION.equals(action)) {
+            handleTimerIntent(context);
+        } else if (CHANGE_STATE_ACTION.equals(action)) {
             handleChangeStateIntent(context, intent);
         } else if (SHOW_AND_DISMISS_ALARM_ACTION.equals(action)) {
             Uri uri = intent.getData();
@@ -786,6 +818,34 @@ public final class AlarmStateManager extends BroadcastReceiver {
             return;
         }
 
+        changeState(context, uri, instance, alarmState);
+    }
+
+    /**
+     * Apply the state changes that are due and set the wakeup for the next one.
+     */
+    private static void handleTimerIntent(Context context) {
+        ContentResolver cr = context.getContentResolver();
+        List<AlarmTimerQueue.Transition> due = AlarmTimerQueue.pollDue(context);
+        AlarmTimerQueue.beginUpdate();
+        try {
+            for (AlarmTimerQueue.Transition transition : due) {
+                AlarmInstance instance = AlarmInstance.getInstance(cr, transition.instanceId);
+                if (instance == null) {
+                    LogUtils.e("Can not change state for unknown instance: "
+                            + transition.instanceId);
+                    continue;
+                }
+                changeState(context, AlarmInstance.getUri(instance.mId), instance,
+                        transition.newState);
+            }
+        } finally {
+            AlarmTimerQueue.endUpdate(context);
+        }
+    }
+
+    private static void changeState(Context context, Uri uri, AlarmInstance instance,
+            int alarmState) {
         // If the phone is busy, add the alarm to a string set in shared preferenecs that will be
         // cleared when the call is ended.
         if (context.getResources().getBoolean(R.bool.config_delayalarm)) {
@@ -0,0 +1,267 @@
+package net.theneophyte.sunstone.app.deskclock.alarms;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+import net.theneophyte.sunstone.app.deskclock.LogUtils;
+import net.theneophyte.sunstone.app.deskclock.Utils;
+import net.theneophyte.sunstone.app.deskclock.provider.AlarmInstance;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Queue of the pending state changes of all alarm instances, ordered by time. Only the
+ * earliest one is registered with {@link AlarmManager}, through a single PendingIntent that
+ * is moved whenever the head of the queue changes. Each instance has at most one pending
+ * state change, scheduling another one replaces it.
+ *
+ * The queue only lives in memory. The next state change of an instance follows from its
+ * state and alarm time, so after the process has died the queue is rebuilt from the
+ * instances table the first time it is used.
+ */
+final class AlarmTimerQueue {
+
+    // Intent action of the one AlarmManager alarm that drives the queue
+    static final String TIMER_ACTION = "state_change_timer";
+
+    /**
+     * Pending state change of one instance
+     */
+    static final class Transition implements Comparable<Transition> {
+        final long instanceId;
+        final long timeInMillis;
+        final int newState;
+
+        Transition(long instanceId, long timeInMillis, int newState) {
+            this.instanceId = instanceId;
+            this.timeInMillis = timeInMillis;
+            this.newState = newState;
+        }
+
+        @Override
+        public int compareTo(Transition other) {
+            if (timeInMillis != other.timeInMillis) {
+                return timeInMillis < other.timeInMillis ? -1 : 1;
+            }
+            return instanceId < other.instanceId ? -1 : (instanceId == other.instanceId ? 0 : 1);
+        }
+    }
+
+    private static final Object sLock = new Object();
+    private static final PriorityQueue<Transition> sQueue = new PriorityQueue<Transition>();
+    private static final Map<Long, Transition> sByInstance = new HashMap<Long, Transition>();
+
+    private static boolean sLoaded = false;
+
+    // Updates in progress, the wakeup is only moved once the last one ends
+    private static int sUpdateDepth = 0;
+
+    // Time the wakeup is set for, or -1 when none is set
+    private static long sArmedTimeInMillis = -1;
+
+    /**
+     * This utility class cannot be instantiated
+     */
+    private AlarmTimerQueue() {}
+
+    /**
+     * Schedules a state change for an instance, replacing any it had pending.
+     *
+     * @param context application context
+     * @param instance to change state of
+     * @param time to change state at
+     * @param newState to change to
+     */
+    static void schedule(Context context, AlarmInstance instance, Calendar time, int newState) {
+        synchronized (sLock) {
+            load(context);
+            remove(instance.mId);
+            Transition transition = new Transition(instance.mId, time.getTimeInMillis(),
+                    newState);
+            sQueue.add(transition);
+            sByInstance.put(instance.mId, transition);
+            arm(context);
+        }
+    }
+
+    /**
+     * Drops the pending state change of an instance.
+     *
+     * @param context application context
+     * @param instance to cancel state changes for
+     */
+    static void cancel(Context context, AlarmInstance instance) {
+        synchronized (sLock) {
+            load(context);
+            if (remove(instance.mId)) {
+                arm(context);
+            }
+        }
+    }
+
+    /**
+     * Empties the queue, for a caller about to schedule every instance again. The wakeup is
+     * left alone until the matching {@link #endUpdate(Context)}.
+     */
+    static void reset() {
+        synchronized (sLock) {
+            sQueue.clear();
+            sByInstance.clear();
+            sLoaded = true;
+            sUpdateDepth++;
+        }
+    }
+
+    /**
+     * Holds back moving the wakeup while a number of state changes are scheduled.
+     * Must be matched by {@link #endUpdate(Context)}.
+     */
+    static void beginUpdate() {
+        synchronized (sLock) {
+            sUpdateDepth++;
+        }
+    }
+
+    /**
+     * Sets the wakeup for the earliest state change, once no update is in progress.
+     *
+     * @param context application context
+     */
+    static void endUpdate(Context context) {
+        synchronized (sLock) {
+            sUpdateDepth--;
+            arm(context);
+        }
+    }
+
+    /**
+     * Takes every state change that is due out of the queue. The caller applies them between
+     * {@link #beginUpdate()} and {@link #endUpdate(Context)}, so the wakeup is only moved
+     * once they have scheduled what comes next.
+     *
+     * @param context application context
+     * @return the due state changes, earliest first
+     */
+    static List<Transition> pollDue(Context context) {
+        List<Transition> due = new ArrayList<Transition>();
+        synchronized (sLock) {
+            load(context);
+
+            // The wakeup that brought us here has been used up
+            sArmedTimeInMillis = -1;
+
+            long now = System.currentTimeMillis();
+            while (!sQueue.isEmpty() && sQueue.peek().timeInMillis <= now) {
+                Transition transition = sQueue.poll();
+                sByInstance.remove(transition.instanceId);
+                due.add(transition);
+            }
+        }
+        return due;
+    }
+
+    private static boolean remove(long instanceId) {
+        Transition transition = sByInstance.remove(instanceId);
+        return transition != null && sQueue.remove(transition);
+    }
+
+    /**
+     * Rebuilds the queue from the instances table, if it hasn't been yet in this process.
+     * Must be called holding sLock.
+     */
+    private static void load(Context context) {
+        if (sLoaded) {
+            return;
+        }
+        sLoaded = true;
+
+        List<AlarmInstance> instances = AlarmInstance.getInstances(context.getContentResolver(),
+                null);
+        for (AlarmInstance instance : instances) {
+            Transition transition = getPendingTransition(context, instance);
+            if (transition != null) {
+                sQueue.add(transition);
+                sByInstance.put(instance.mId, transition);
+            }
+        }
+        LogUtils.v("Loaded " + sQueue.size() + " pending state changes");
+    }
+
+    /**
+     * Works out the state change an instance waits for in its current state, matching what
+     * the AlarmStateManager states schedule.
+     */
+    private static Transition getPendingTransition(Context context, AlarmInstance instance) {
+        Calendar time;
+        int newState;
+        switch (instance.mAlarmState) {
+            case AlarmInstance.SILENT_STATE:
+                time = instance.getLowNotificationTime();
+                newState = AlarmInstance.LOW_NOTIFICATION_STATE;
+                break;
+            case AlarmInstance.LOW_NOTIFICATION_STATE:
+            case AlarmInstance.HIDE_NOTIFICATION_STATE:
+                time = instance.getHighNotificationTime();
+                newState = AlarmInstance.HIGH_NOTIFICATION_STATE;
+                break;
+            case AlarmInstance.HIGH_NOTIFICATION_STATE:
+            case AlarmInstance.SNOOZE_STATE:
+                time = instance.getAlarmTime();
+                newState = AlarmInstance.FIRED_STATE;
+                break;
+            case AlarmInstance.FIRED_STATE:
+                time = instance.getTimeout(context);
+                newState = AlarmInstance.MISSED_STATE;
+                break;
+            case AlarmInstance.MISSED_STATE:
+                time = instance.getMissedTimeToLive();
+                newState = AlarmInstance.DISMISSED_STATE;
+                break;
+            default:
+                return null;
+        }
+
+        return time != null
+                ? new Transition(instance.mId, time.getTimeInMillis(), newState) : null;
+    }
+
+    /**
+     * Moves the wakeup to the head of the queue, if it isn't there already. Must be called
+     * holding sLock.
+     */
+    private static void arm(Context context) {
+        if (sUpdateDepth > 0) {
+            return;
+        }
+
+        long timeInMillis = sQueue.isEmpty() ? -1 : sQueue.peek().timeInMillis;
+        if (timeInMillis == sArmedTimeInMillis) {
+            return;
+        }
+
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0,
+                new Intent(context, AlarmStateManager.class).setAction(TIMER_ACTION),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        if (timeInMillis < 0) {
+            LogUtils.v("No state changes pending, canceling wakeup");
+            am.cancel(pendingIntent);
+        } else {
+            LogUtils.v("Setting wakeup for instance " + sQueue.peek().instanceId + " at "
+                    + timeInMillis);
+            if (Utils.isKitKatOrLater()) {
+                am.setExact(AlarmManager.RTC_WAKEUP, timeInMillis, pendingIntent);
+            } else {
+                am.set(AlarmManager.RTC_WAKEUP, timeInMillis, pendingIntent);
+            }
+        }
+        sArmedTimeInMillis = timeInMillis;
+    }
+}
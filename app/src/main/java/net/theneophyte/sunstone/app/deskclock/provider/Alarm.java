@@ -58,7 +58,8 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
             LABEL,
             RINGTONE,
             DELETE_AFTER_USE,
-            INCREASING_VOLUME
+            INCREASING_VOLUME,
+            SUNRISE
     };
 
     /**
@@ -75,8 +76,9 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
     private static final int RINGTONE_INDEX = 7;
     private static final int DELETE_AFTER_USE_INDEX = 8;
     private static final int INCREASING_VOLUME_INDEX = 9;
+    private static final int SUNRISE_INDEX = 10;
 
-    private static final int COLUMN_COUNT = INCREASING_VOLUME_INDEX + 1;
+    private static final int COLUMN_COUNT = SUNRISE_INDEX + 1;
 
     public static ContentValues createContentValues(Alarm alarm) {
         ContentValues values = new ContentValues(COLUMN_COUNT);
@@ -92,6 +94,7 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
         values.put(LABEL, alarm.label);
         values.put(DELETE_AFTER_USE, alarm.deleteAfterUse);
         values.put(INCREASING_VOLUME, alarm.increasingVolume ? 1 : 0);
+        values.put(SUNRISE, alarm.sunrise ? 1 : 0);
         if (alarm.alert == null) {
             // We want to put null, so default alarm changes
             values.putNull(RINGTONE);
@@ -137,8 +140,12 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
      * @return alarm if found, null otherwise
      */
     public static Alarm getAlarm(ContentResolver contentResolver, long alarmId) {
+        Alarm result = AlarmCache.getAlarm(alarmId);
+        if (result != null) {
+            return result;
+        }
+
         Cursor cursor = contentResolver.query(getUri(alarmId), QUERY_COLUMNS, null, null, null);
-        Alarm result = null;
         if (cursor == null) {
             return result;
         }
@@ -146,6 +153,7 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
         try {
             if (cursor.moveToFirst()) {
                 result = new Alarm(cursor);
+                AlarmCache.putAlarm(contentResolver, result);
             }
         } finally {
             cursor.close();
@@ -198,12 +206,28 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
     public static boolean updateAlarm(ContentResolver contentResolver, Alarm alarm) {
         if (alarm.id == Alarm.INVALID_ID) return false;
         ContentValues values = createContentValues(alarm);
-        long rowsUpdated = contentResolver.update(getUri(alarm.id), values, null, null);
+        Uri uri = getUri(alarm.id);
+        long rowsUpdated;
+        AlarmCache.expectChange(uri);
+        try {
+            rowsUpdated = contentResolver.update(uri, values, null, null);
+        } catch (RuntimeException e) {
+            AlarmCache.cancelExpectedChange(uri);
+            AlarmCache.removeAlarm(alarm.id);
+            throw e;
+        }
+
+        if (rowsUpdated == 1) {
+            AlarmCache.putAlarm(contentResolver, alarm);
+        } else {
+            AlarmCache.removeAlarm(alarm.id);
+        }
         return rowsUpdated == 1;
     }
 
     public static boolean deleteAlarm(ContentResolver contentResolver, long alarmId) {
         if (alarmId == INVALID_ID) return false;
+        AlarmCache.removeAlarm(alarmId);
         int deletedRows = contentResolver.delete(getUri(alarmId), "", null);
         return deletedRows == 1;
     }
@@ -230,6 +254,7 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
     public Uri alert;
     public boolean deleteAfterUse;
     public boolean increasingVolume;
+    public boolean sunrise;
 
     // Creates a default alarm at the current time.
     public Alarm() {
@@ -246,6 +271,7 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
         this.alert = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
         this.deleteAfterUse = false;
         this.increasingVolume = false;
+        this.sunrise = false;
     }
 
     public Alarm(Cursor c) {
@@ -258,6 +284,7 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
         label = c.getString(LABEL_INDEX);
         deleteAfterUse = c.getInt(DELETE_AFTER_USE_INDEX) == 1;
         increasingVolume = c.getInt(INCREASING_VOLUME_INDEX) == 1;
+        sunrise = c.getInt(SUNRISE_INDEX) == 1;
 
         if (c.isNull(RINGTONE_INDEX)) {
             // Should we be saving this with the current ringtone or leave it null
@@ -268,6 +295,20 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
         }
     }
 
+    Alarm(Alarm other) {
+        id = other.id;
+        enabled = other.enabled;
+        hour = other.hour;
+        minutes = other.minutes;
+        daysOfWeek = new DaysOfWeek(other.daysOfWeek.getBitSet());
+        vibrate = other.vibrate;
+        label = other.label;
+        alert = other.alert;
+        deleteAfterUse = other.deleteAfterUse;
+        increasingVolume = other.increasingVolume;
+        sunrise = other.sunrise;
+    }
+
     Alarm(Parcel p) {
         id = p.readLong();
         enabled = p.readInt() == 1;
@@ -279,6 +320,7 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
         alert = (Uri) p.readParcelable(null);
         deleteAfterUse = p.readInt() == 1;
         increasingVolume = p.readInt() == 1;
+        sunrise = p.readInt() == 1;
     }
 
     public String getLabelOrDefault(Context context) {
@@ -299,6 +341,7 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
         p.writeParcelable(alert, flags);
         p.writeInt(deleteAfterUse ? 1 : 0);
         p.writeInt(increasingVolume ? 1 : 0);
+        p.writeInt(sunrise ? 1 : 0);
     }
 
     public int describeContents() {
@@ -359,6 +402,7 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
                 ", label='" + label + '\'' +
                 ", deleteAfterUse=" + deleteAfterUse +
                 ", increasingVolume=" + increasingVolume +
+                ", sunrise=" + sunrise +
                 '}';
     }
 }
@@ -0,0 +1,185 @@
+package net.theneophyte.sunstone.app.deskclock.provider;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import net.theneophyte.sunstone.app.deskclock.LogUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide cache of {@link Alarm} and {@link AlarmInstance} rows keyed by id, so
+ * alarm state transitions don't go back to SQLite for rows they have just read or
+ * written. Writes made through {@link Alarm} and {@link AlarmInstance} go through to
+ * the provider and update the cache. Any other change to the clock tables, from a
+ * batch, a delete by selection or another process, is picked up by a ContentObserver
+ * that drops the affected rows.
+ *
+ * The cache hands out copies, so callers are free to modify what they get.
+ */
+final class AlarmCache {
+
+    private static final String ALARMS_PATH = "alarms";
+    private static final String INSTANCES_PATH = "instances";
+
+    private static final Object sLock = new Object();
+    private static final Map<Long, Alarm> sAlarms = new HashMap<Long, Alarm>();
+    private static final Map<Long, AlarmInstance> sInstances = new HashMap<Long, AlarmInstance>();
+
+    // Change notifications still to come for writes made through the cache, by row URI
+    private static final Map<Uri, Integer> sExpectedChanges = new HashMap<Uri, Integer>();
+
+    private static boolean sObserving = false;
+
+    /**
+     * Drops cached rows when the clock tables change behind the cache's back
+     */
+    private static final ContentObserver sObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            synchronized (sLock) {
+                if (uri != null && consumeExpectedChange(uri)) {
+                    return;
+                }
+                invalidate(uri);
+            }
+        }
+    };
+
+    /**
+     * This utility class cannot be instantiated
+     */
+    private AlarmCache() {}
+
+    static Alarm getAlarm(long alarmId) {
+        synchronized (sLock) {
+            Alarm alarm = sAlarms.get(alarmId);
+            return alarm != null ? new Alarm(alarm) : null;
+        }
+    }
+
+    static AlarmInstance getInstance(long instanceId) {
+        synchronized (sLock) {
+            AlarmInstance instance = sInstances.get(instanceId);
+            return instance != null ? new AlarmInstance(instance) : null;
+        }
+    }
+
+    static void putAlarm(ContentResolver contentResolver, Alarm alarm) {
+        synchronized (sLock) {
+            startObserving(contentResolver);
+            sAlarms.put(alarm.id, new Alarm(alarm));
+        }
+    }
+
+    static void putInstance(ContentResolver contentResolver, AlarmInstance instance) {
+        synchronized (sLock) {
+            startObserving(contentResolver);
+            sInstances.put(instance.mId, new AlarmInstance(instance));
+        }
+    }
+
+    static void putInstances(ContentResolver contentResolver, List<AlarmInstance> instances) {
+        synchronized (sLock) {
+            startObserving(contentResolver);
+            for (AlarmInstance instance : instances) {
+                sInstances.put(instance.mId, new AlarmInstance(instance));
+            }
+        }
+    }
+
+    static void removeAlarm(long alarmId) {
+        synchronized (sLock) {
+            sAlarms.remove(alarmId);
+        }
+    }
+
+    static void removeInstance(long instanceId) {
+        synchronized (sLock) {
+            sInstances.remove(instanceId);
+        }
+    }
+
+    /**
+     * Records that a write to a row is about to go through the cache, so its change
+     * notification doesn't drop the row again. Must be matched by
+     * {@link #cancelExpectedChange(Uri)} if the write doesn't reach the provider.
+     */
+    static void expectChange(Uri uri) {
+        synchronized (sLock) {
+            Integer count = sExpectedChanges.get(uri);
+            sExpectedChanges.put(uri, count != null ? count + 1 : 1);
+        }
+    }
+
+    static void cancelExpectedChange(Uri uri) {
+        synchronized (sLock) {
+            consumeExpectedChange(uri);
+        }
+    }
+
+    private static boolean consumeExpectedChange(Uri uri) {
+        Integer count = sExpectedChanges.get(uri);
+        if (count == null) {
+            return false;
+        }
+
+        if (count > 1) {
+            sExpectedChanges.put(uri, count - 1);
+        } else {
+            sExpectedChanges.remove(uri);
+        }
+        return true;
+    }
+
+    private static void startObserving(ContentResolver contentResolver) {
+        if (sObserving) {
+            return;
+        }
+
+        contentResolver.registerContentObserver(
+                Uri.parse("content://" + ClockContract.AUTHORITY), true, sObserver);
+        sObserving = true;
+    }
+
+    /**
+     * Drops the rows a change notification is about. Must be called holding sLock.
+     */
+    private static void invalidate(Uri uri) {
+        List<String> segments = uri != null ? uri.getPathSegments() : null;
+        if (segments == null || segments.isEmpty()) {
+            sAlarms.clear();
+            sInstances.clear();
+            return;
+        }
+
+        Map<Long, ?> rows;
+        if (ALARMS_PATH.equals(segments.get(0))) {
+            rows = sAlarms;
+        } else if (INSTANCES_PATH.equals(segments.get(0))) {
+            rows = sInstances;
+        } else {
+            return;
+        }
+
+        if (segments.size() < 2) {
+            rows.clear();
+            return;
+        }
+
+        try {
+            rows.remove(Long.parseLong(segments.get(1)));
+        } catch (NumberFormatException e) {
+            LogUtils.e("Unexpected clock change notification: " + uri);
+            rows.clear();
+        }
+    }
+}
@@ -19,20 +19,25 @@
 
 package net.theneophyte.sunstone.app.deskclock.provider;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.media.RingtoneManager;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 
 import net.theneophyte.sunstone.app.deskclock.LogUtils;
 import net.theneophyte.sunstone.app.R;
 import net.theneophyte.sunstone.app.deskclock.SettingsActivity;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.LinkedList;
 import java.util.List;
@@ -75,7 +80,8 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
             RINGTONE,
             ALARM_ID,
             ALARM_STATE,
-            INCREASING_VOLUME
+            INCREASING_VOLUME,
+            ALARM_TIME
     };
 
     /**
@@ -94,8 +100,9 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
     private static final int ALARM_ID_INDEX = 9;
     private static final int ALARM_STATE_INDEX = 10;
     private static final int INCREASING_VOLUME_INDEX = 11;
+    private static final int ALARM_TIME_INDEX = 12;
 
-    private static final int COLUMN_COUNT = INCREASING_VOLUME_INDEX + 1;
+    private static final int COLUMN_COUNT = ALARM_TIME_INDEX + 1;
     private Calendar mTimeout;
 
     public static ContentValues createContentValues(AlarmInstance instance) {
@@ -122,6 +129,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
         }
         values.put(ALARM_ID, instance.mAlarmId);
         values.put(ALARM_STATE, instance.mAlarmState);
+        values.put(ALARM_TIME, instance.getAlarmTime().getTimeInMillis());
         return values;
     }
 
@@ -151,8 +159,12 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
      * @return instance if found, null otherwise
      */
     public static AlarmInstance getInstance(ContentResolver contentResolver, long instanceId) {
+        AlarmInstance result = AlarmCache.getInstance(instanceId);
+        if (result != null) {
+            return result;
+        }
+
         Cursor cursor = contentResolver.query(getUri(instanceId), QUERY_COLUMNS, null, null, null);
-        AlarmInstance result = null;
         if (cursor == null) {
             return result;
         }
@@ -160,6 +172,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
         try {
             if (cursor.moveToFirst()) {
                 result = new AlarmInstance(cursor);
+                AlarmCache.putInstance(contentResolver, result);
             }
         } finally {
             cursor.close();
@@ -210,6 +223,35 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
             cursor.close();
         }
 
+        AlarmCache.putInstances(contentResolver, result);
+        return result;
+    }
+
+    /**
+     * Get the instance that fires next, using the fire time index.
+     *
+     * @param contentResolver to perform the query on.
+     * @return the first instance that hasn't fired yet, null if there is none
+     */
+    public static AlarmInstance getNextInstance(ContentResolver contentResolver) {
+        Uri uri = CONTENT_URI.buildUpon()
+                .appendQueryParameter(ClockContract.QUERY_PARAMETER_LIMIT, "1")
+                .build();
+        Cursor cursor = contentResolver.query(uri, QUERY_COLUMNS,
+                ALARM_STATE + "<" + FIRED_STATE, null, ALARM_TIME + " ASC");
+        AlarmInstance result = null;
+        if (cursor == null) {
+            return result;
+        }
+
+        try {
+            if (cursor.moveToFirst()) {
+                result = new AlarmInstance(cursor);
+            }
+        } finally {
+            cursor.close();
+        }
+
         return result;
     }
 
@@ -239,16 +281,95 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
     public static boolean updateInstance(ContentResolver contentResolver, AlarmInstance instance) {
         if (instance.mId == INVALID_ID) return false;
         ContentValues values = createContentValues(instance);
-        long rowsUpdated = contentResolver.update(getUri(instance.mId), values, null, null);
+        Uri uri = getUri(instance.mId);
+        long rowsUpdated;
+        AlarmCache.expectChange(uri);
+        try {
+            rowsUpdated = contentResolver.update(uri, values, null, null);
+        } catch (RuntimeException e) {
+            AlarmCache.cancelExpectedChange(uri);
+            AlarmCache.removeInstance(instance.mId);
+            throw e;
+        }
+
+        if (rowsUpdated == 1) {
+            AlarmCache.putInstance(contentResolver, instance);
+        } else {
+            AlarmCache.removeInstance(instance.mId);
+        }
         return rowsUpdated == 1;
     }
 
+    /**
+     * Write several instances back to the database in one transaction. The cache is
+     * updated right away, the batch is only announced to observers as a whole.
+     *
+     * @param contentResolver to perform the update on.
+     * @param instances to update, instances that were never saved are skipped.
+     * @return true if the batch was applied.
+     */
+    public static boolean updateInstances(ContentResolver contentResolver,
+            List<AlarmInstance> instances) {
+        ArrayList<AlarmInstance> saved = new ArrayList<AlarmInstance>(instances.size());
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(instances.size());
+        for (AlarmInstance instance : instances) {
+            if (instance.mId == INVALID_ID) continue;
+            saved.add(instance);
+            operations.add(ContentProviderOperation.newUpdate(getUri(instance.mId))
+                    .withValues(createContentValues(instance))
+                    .build());
+        }
+
+        ContentProviderResult[] results = null;
+        try {
+            results = contentResolver.applyBatch(ClockContract.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            LogUtils.e("Failed to update instances", e);
+        } catch (OperationApplicationException e) {
+            LogUtils.e("Failed to update instances", e);
+        } finally {
+            if (results == null) {
+                for (AlarmInstance instance : saved) {
+                    AlarmCache.removeInstance(instance.mId);
+                }
+            }
+        }
+
+        if (results == null) {
+            return false;
+        }
+
+        ArrayList<AlarmInstance> updated = new ArrayList<AlarmInstance>(saved.size());
+        for (int i = 0; i < saved.size(); i++) {
+            if (results[i].count != null && results[i].count == 1) {
+                updated.add(saved.get(i));
+            } else {
+                AlarmCache.removeInstance(saved.get(i).mId);
+            }
+        }
+        AlarmCache.putInstances(contentResolver, updated);
+        return true;
+    }
+
     public static boolean deleteInstance(ContentResolver contentResolver, long instanceId) {
         if (instanceId == INVALID_ID) return false;
+        AlarmCache.removeInstance(instanceId);
         int deletedRows = contentResolver.delete(getUri(instanceId), "", null);
         return deletedRows == 1;
     }
 
+    /**
+     * Delete every instance of an alarm with a single statement.
+     *
+     * @param contentResolver to perform the delete on.
+     * @param alarmId of the instances to delete.
+     * @return number of instances deleted.
+     */
+    public static int deleteInstancesByAlarmId(ContentResolver contentResolver, long alarmId) {
+        return contentResolver.delete(CONTENT_URI, ALARM_ID + "=" + alarmId, null);
+    }
+
     // Public fields
     public long mId;
     public int mYear;
@@ -278,6 +399,21 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
         mAlarmState = SILENT_STATE;
     }
 
+    AlarmInstance(AlarmInstance other) {
+        mId = other.mId;
+        mYear = other.mYear;
+        mMonth = other.mMonth;
+        mDay = other.mDay;
+        mHour = other.mHour;
+        mMinute = other.mMinute;
+        mLabel = other.mLabel;
+        mVibrate = other.mVibrate;
+        mRingtone = other.mRingtone;
+        mAlarmId = other.mAlarmId;
+        mAlarmState = other.mAlarmState;
+        mIncreasingVolume = other.mIncreasingVolume;
+    }
+
     public AlarmInstance(Cursor c) {
         mId = c.getLong(ID_INDEX);
         mYear = c.getInt(YEAR_INDEX);
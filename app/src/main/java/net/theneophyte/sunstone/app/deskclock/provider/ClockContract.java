@@ -43,6 +43,11 @@ public final class ClockContract {
      */
     public static final String AUTHORITY = "net.theneophyte.sunstone.app.deskclock";
 
+    /**
+     * Query parameter limiting the number of rows a query returns.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     /**
      * This utility class cannot be instantiated
      */
@@ -137,6 +142,12 @@ public final class ClockContract {
          * <p>Type: INTEGER</p>
          */
         public static final String DELETE_AFTER_USE = "delete_after_use";
+
+        /**
+         * True if the lamp should slowly brighten to full before the alarm fires
+         * <p>Type: BOOLEAN</p>
+         */
+        public static final String SUNRISE = "sunrise";
     }
 
     /**
@@ -265,6 +276,13 @@ public final class ClockContract {
          * <p>Type: INTEGER</p>
          */
         public static final String ALARM_STATE = "alarm_state";
+
+        /**
+         * Time the alarm fires in UTC milliseconds, derived from the local time
+         * columns whenever the instance is written.
+         * <p>Type: INTEGER (long)</p>
+         */
+        public static final String ALARM_TIME = "alarm_time";
     }
 
     /**
@@ -22,6 +22,7 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 
@@ -62,6 +63,16 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
      */
     private static final int VERSION_9 = 11;
 
+    /**
+     * Added sunrise wake-up light to alarms table
+     */
+    private static final int VERSION_10 = 12;
+
+    /**
+     * Added UTC fire time to instance table, indexed for the next alarm lookup
+     */
+    private static final int VERSION_11 = 13;
+
     // This creates a default alarm at 8:30 for every Mon,Tue,Wed,Thu,Fri
     private static final String DEFAULT_ALARM_1 = "(8, 30, 31, 0, 0, '', NULL, 0, 0);";
 
@@ -74,6 +85,7 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
     static final String ALARMS_TABLE_NAME = "alarm_templates";
     static final String INSTANCES_TABLE_NAME = "alarm_instances";
     static final String CITIES_TABLE_NAME = "selected_cities";
+    static final String INSTANCES_TIME_INDEX_NAME = "alarm_instances_time";
 
     private static void createAlarmsTable(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + ALARMS_TABLE_NAME + " (" +
@@ -86,7 +98,8 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
                 ClockContract.AlarmsColumns.LABEL + " TEXT NOT NULL, " +
                 ClockContract.AlarmsColumns.RINGTONE + " TEXT, " +
                 ClockContract.AlarmsColumns.DELETE_AFTER_USE + " INTEGER NOT NULL DEFAULT 0, " +
-                ClockContract.AlarmsColumns.INCREASING_VOLUME + " INTEGER NOT NULL DEFAULT 0);");
+                ClockContract.AlarmsColumns.INCREASING_VOLUME + " INTEGER NOT NULL DEFAULT 0, " +
+                ClockContract.AlarmsColumns.SUNRISE + " INTEGER NOT NULL DEFAULT 0);");
         LogUtils.i("Alarms Table created");
     }
 
@@ -105,10 +118,52 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
                 ClockContract.InstancesColumns.ALARM_ID + " INTEGER REFERENCES " +
                     ALARMS_TABLE_NAME + "(" + ClockContract.AlarmsColumns._ID + ") " +
                     "ON UPDATE CASCADE ON DELETE CASCADE, " +
-                ClockContract.InstancesColumns.INCREASING_VOLUME + " INTEGER NOT NULL DEFAULT 0);");
+                ClockContract.InstancesColumns.INCREASING_VOLUME + " INTEGER NOT NULL DEFAULT 0, " +
+                ClockContract.InstancesColumns.ALARM_TIME + " INTEGER NOT NULL DEFAULT 0);");
+        createInstanceTimeIndex(db);
         LogUtils.i("Instance table created");
     }
 
+    // Time first, so the next alarm is the first active row of an in order index scan
+    private static void createInstanceTimeIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + INSTANCES_TIME_INDEX_NAME + " ON " +
+                INSTANCES_TABLE_NAME + " (" +
+                ClockContract.InstancesColumns.ALARM_TIME + ", " +
+                ClockContract.InstancesColumns.ALARM_STATE + ");");
+    }
+
+    private static void backfillInstanceTimes(SQLiteDatabase db) {
+        String[] columns = {
+                ClockContract.InstancesColumns._ID,
+                ClockContract.InstancesColumns.YEAR,
+                ClockContract.InstancesColumns.MONTH,
+                ClockContract.InstancesColumns.DAY,
+                ClockContract.InstancesColumns.HOUR,
+                ClockContract.InstancesColumns.MINUTES
+        };
+        Cursor cursor = db.query(INSTANCES_TABLE_NAME, columns, null, null, null, null, null);
+
+        // onUpgrade already runs in a transaction, so only the statement compile is saved here
+        SQLiteStatement update = db.compileStatement("UPDATE " + INSTANCES_TABLE_NAME +
+                " SET " + ClockContract.InstancesColumns.ALARM_TIME + "=?" +
+                " WHERE " + ClockContract.InstancesColumns._ID + "=?");
+        Calendar time = Calendar.getInstance();
+        try {
+            while (cursor.moveToNext()) {
+                time.set(cursor.getInt(1), cursor.getInt(2), cursor.getInt(3),
+                        cursor.getInt(4), cursor.getInt(5), 0);
+                time.set(Calendar.MILLISECOND, 0);
+
+                update.bindLong(1, time.getTimeInMillis());
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            update.close();
+            cursor.close();
+        }
+    }
+
     private static void createCitiesTable(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + CITIES_TABLE_NAME + " (" +
                 ClockContract.CitiesColumns.CITY_ID + " TEXT PRIMARY KEY," +
@@ -121,7 +176,7 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
     private Context mContext;
 
     public ClockDatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, VERSION_9);
+        super(context, DATABASE_NAME, null, VERSION_11);
         mContext = context;
     }
 
@@ -220,6 +275,20 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
                         + " ADD COLUMN " + ClockContract.InstancesColumns.INCREASING_VOLUME
                         + " INTEGER NOT NULL DEFAULT 0;");
             }
+
+            if (oldVersion < VERSION_10) {
+                db.execSQL("ALTER TABLE " + ALARMS_TABLE_NAME
+                        + " ADD COLUMN " + ClockContract.AlarmsColumns.SUNRISE
+                        + " INTEGER NOT NULL DEFAULT 0;");
+            }
+
+            if (oldVersion < VERSION_11) {
+                db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME
+                        + " ADD COLUMN " + ClockContract.InstancesColumns.ALARM_TIME
+                        + " INTEGER NOT NULL DEFAULT 0;");
+                backfillInstanceTimes(db);
+                createInstanceTimeIndex(db);
+            }
         }
     }
 
@@ -17,8 +17,11 @@
 package net.theneophyte.sunstone.app.deskclock.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -28,9 +31,16 @@ import android.text.TextUtils;
 
 import net.theneophyte.sunstone.app.deskclock.LogUtils;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
 public class ClockProvider extends ContentProvider {
     private ClockDatabaseHelper mOpenHelper;
 
+    // Tables changed by the batch running on this thread, notified once it commits
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<Set<Uri>>();
+
     private static final int ALARMS = 1;
     private static final int ALARMS_ID = 2;
     private static final int INSTANCES = 3;
@@ -94,8 +104,9 @@ public class ClockProvider extends ContentProvider {
         }
 
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String limit = uri.getQueryParameter(ClockContract.QUERY_PARAMETER_LIMIT);
         Cursor ret = qb.query(db, projectionIn, selection, selectionArgs,
-                              null, null, sort);
+                              null, null, sort, limit);
 
         if (ret == null) {
             LogUtils.e("Alarms.query: failed");
@@ -157,7 +168,7 @@ public class ClockProvider extends ContentProvider {
             }
         }
         LogUtils.v("*** notifyChange() id: " + alarmId + " url " + uri);
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
 
@@ -180,7 +191,7 @@ public class ClockProvider extends ContentProvider {
         }
 
         Uri uriResult = ContentUris.withAppendedId(ClockContract.AlarmsColumns.CONTENT_URI, rowId);
-        getContext().getContentResolver().notifyChange(uriResult, null);
+        notifyChange(uriResult);
         return uriResult;
     }
 
@@ -233,7 +244,96 @@ public class ClockProvider extends ContentProvider {
                 throw new IllegalArgumentException("Cannot delete from URL: " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
+
+    /**
+     * Applies all operations in a single transaction. Observers are notified once
+     * per changed table after the transaction commits, instead of once per row.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Uri> changes = new HashSet<Uri>();
+        ContentProviderResult[] results;
+
+        mBatchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
+        }
+
+        notifyChanges(changes);
+        return results;
+    }
+
+    /**
+     * Inserts all rows in a single transaction. Observers are notified once for the
+     * table after the transaction commits, instead of once per row.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Uri> changes = new HashSet<Uri>();
+
+        mBatchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            for (ContentValues rowValues : values) {
+                insert(uri, rowValues);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
+        }
+
+        changes.add(getTableUri(uri));
+        notifyChanges(changes);
+        return values.length;
+    }
+
+    /**
+     * Notifies observers of a change, or collects the change while a batch is running.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batch = mBatchChanges.get();
+        if (batch != null) {
+            batch.add(getTableUri(uri));
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    private void notifyChanges(Set<Uri> changes) {
+        for (Uri uri : changes) {
+            LogUtils.v("*** notifyChange() batch url " + uri);
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Gets the URI of the whole table a row URI belongs to.
+     */
+    private static Uri getTableUri(Uri uri) {
+        switch (sURLMatcher.match(uri)) {
+            case ALARMS:
+            case ALARMS_ID:
+                return ClockContract.AlarmsColumns.CONTENT_URI;
+            case INSTANCES:
+            case INSTANCES_ID:
+                return ClockContract.InstancesColumns.CONTENT_URI;
+            case CITIES:
+            case CITIES_ID:
+                return ClockContract.CitiesColumns.CONTENT_URI;
+            default:
+                return uri;
+        }
+    }
 }
@@ -0,0 +1,46 @@
+package net.theneophyte.sunstone.app.benchmark;
+
+import net.theneophyte.sunstone.app.lighting.LampChannel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of packing a frame into the value of the packed frame Characteristic.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelEncodingBenchmark {
+
+    private final int[] mFrame = {255, 128, 64, 32, 16, 8, 4};
+    private final byte[] mOut = new byte[LampChannel.COUNT];
+
+    /**
+     * Packs into a new array, as the write path does for every frame write
+     */
+    @Benchmark
+    public byte[] encodeNew(){
+        return LampChannel.encode(mFrame, new byte[LampChannel.COUNT]);
+    }
+
+    /**
+     * Packs into a reused array, the floor for encoding
+     */
+    @Benchmark
+    public byte[] encodeReused(){
+        return LampChannel.encode(mFrame, mOut);
+    }
+}
@@ -0,0 +1,58 @@
+package net.theneophyte.sunstone.app.benchmark;
+
+import net.theneophyte.sunstone.app.lighting.AnimationEngine;
+import net.theneophyte.sunstone.app.lighting.LampChannel;
+import net.theneophyte.sunstone.app.lighting.LightingDemos;
+import net.theneophyte.sunstone.app.lighting.Timeline;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of sampling one frame of the demo timelines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpolationBenchmark {
+
+    @Param({"color", "sunrise"})
+    public String demo;
+
+    private Timeline mTimeline;
+    private final int[] mFrame = new int[LampChannel.COUNT];
+    private long mElapsedMillis = 0;
+
+    @Setup
+    public void setUp(){
+        mTimeline = "sunrise".equals(demo) ? LightingDemos.SUNRISE : LightingDemos.COLOR_CYCLE;
+    }
+
+    /**
+     * Samples the next frame, walking through the timeline at the engine's frame rate
+     */
+    @Benchmark
+    public int[] sample(){
+        mElapsedMillis += AnimationEngine.DEFAULT_FRAME_PERIOD_MILLIS;
+        if (mElapsedMillis > mTimeline.getDurationMillis()){
+            mElapsedMillis = 0;
+        }
+
+        mTimeline.sample(mElapsedMillis, mFrame);
+        return mFrame;
+    }
+}
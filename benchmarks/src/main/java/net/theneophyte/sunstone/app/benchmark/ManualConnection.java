@@ -0,0 +1,51 @@
+package net.theneophyte.sunstone.app.benchmark;
+
+import net.theneophyte.sunstone.app.protocol.OperationQueue;
+
+import java.util.ArrayDeque;
+
+/**
+ * Connection that only records the targets of the operations started on it, and
+ * answers them when asked to, so benchmarks measure the queue and not a radio.
+ */
+class ManualConnection {
+
+    /**
+     * Timer that never runs anything, nothing times out in a benchmark
+     */
+    static final OperationQueue.Timer NO_TIMER = new OperationQueue.Timer() {
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+        }
+    };
+
+    private final ArrayDeque<Object> mStarted = new ArrayDeque<Object>();
+
+    /**
+     * Records an operation being started
+     * @param target Target its callback will report
+     */
+    void start(Object target){
+        mStarted.add(target);
+    }
+
+    /**
+     * Answers every started operation, including the ones started by earlier answers
+     * @param queue Queue the operations came from
+     * @return Number of operations answered
+     */
+    int drain(OperationQueue<ManualConnection> queue){
+        int count = 0;
+
+        Object target;
+        while ((target = mStarted.poll()) != null){
+            queue.onCallback(target, true);
+            count++;
+        }
+        return count;
+    }
+}
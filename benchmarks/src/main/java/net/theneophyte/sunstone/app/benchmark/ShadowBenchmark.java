@@ -0,0 +1,65 @@
+package net.theneophyte.sunstone.app.benchmark;
+
+import net.theneophyte.sunstone.app.lighting.LampChannel;
+import net.theneophyte.sunstone.app.protocol.ChannelShadow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of diffing a frame against the shadow of the lamp state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShadowBenchmark {
+
+    private final ChannelShadow mShadow = new ChannelShadow(LampChannel.COUNT);
+    private final int[] mFrame = new int[LampChannel.COUNT];
+    private int mStep = 0;
+
+    /**
+     * Diffs a frame the lamp already holds, every channel is suppressed
+     */
+    @Benchmark
+    public int unchangedFrame(){
+        int writes = 0;
+        for (int channel = 0; channel < mFrame.length; channel++){
+            if (mShadow.setDesired(channel, mFrame[channel])){
+                mShadow.confirm(channel, mFrame[channel]);
+                writes++;
+            }
+        }
+        return writes;
+    }
+
+    /**
+     * Diffs a frame that changes every channel and confirms it
+     */
+    @Benchmark
+    public int changedFrame(){
+        mStep++;
+
+        int writes = 0;
+        for (int channel = 0; channel < mFrame.length; channel++){
+            final int value = (mStep + channel) & 0xFF;
+            if (mShadow.setDesired(channel, value)){
+                mShadow.confirm(channel, value);
+                writes++;
+            }
+        }
+        return writes;
+    }
+}
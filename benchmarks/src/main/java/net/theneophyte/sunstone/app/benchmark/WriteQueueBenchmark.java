@@ -0,0 +1,101 @@
+package net.theneophyte.sunstone.app.benchmark;
+
+import net.theneophyte.sunstone.app.lighting.LampChannel;
+import net.theneophyte.sunstone.app.protocol.OperationQueue;
+import net.theneophyte.sunstone.app.protocol.QueuedOperation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of putting writes into the operation queue the app runs GATT operations
+ * through, and draining it, per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteQueueBenchmark {
+
+    /**
+     * Write of one Characteristic, like the app's channel and frame writes
+     */
+    private static class Write extends QueuedOperation<ManualConnection> {
+        private final Object mTarget;
+
+        Write(Object target, int priority){
+            super(priority, 1000, 2);
+            mTarget = target;
+        }
+
+        @Override
+        protected boolean start(ManualConnection connection){
+            connection.start(mTarget);
+            return true;
+        }
+
+        @Override
+        protected boolean isCompletedBy(Object target){
+            return target == mTarget;
+        }
+
+        @Override
+        protected void finish(boolean success){
+        }
+    }
+
+    private final Object mFrameTarget = new Object();
+    private final Object[] mChannelTargets = new Object[LampChannel.COUNT];
+
+    private ManualConnection mConnection;
+    private OperationQueue<ManualConnection> mQueue;
+
+    @Setup
+    public void setUp(){
+        for (int channel = 0; channel < mChannelTargets.length; channel++){
+            mChannelTargets[channel] = new Object();
+        }
+
+        mConnection = new ManualConnection();
+        mQueue = new OperationQueue<ManualConnection>(ManualConnection.NO_TIMER);
+        mQueue.setConnection(mConnection);
+    }
+
+    /**
+     * Queues and drains one packed frame write, as an animation does every frame
+     */
+    @Benchmark
+    public int frame(){
+        mQueue.enqueue(new Write(mFrameTarget, QueuedOperation.PRIORITY_ANIMATION));
+        return mConnection.drain(mQueue);
+    }
+
+    /**
+     * Queues a write per channel at once and drains them, as a lamp without the
+     * packed frame Characteristic gets
+     */
+    @Benchmark
+    public int channels(){
+        final List<Write> writes = new ArrayList<Write>(mChannelTargets.length);
+        for (Object target : mChannelTargets){
+            writes.add(new Write(target, QueuedOperation.PRIORITY_INTERACTIVE));
+        }
+
+        mQueue.enqueueAll(writes);
+        return mConnection.drain(mQueue);
+    }
+}
@@ -0,0 +1,244 @@
+package net.theneophyte.sunstone.app.lighting;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a {@link Timeline} on a {@link FrameSink} at a fixed frame rate.
+ *
+ * A single scheduler thread samples the timeline once per frame period and sends
+ * the frame as one batched update. The timeline is sampled at the wall-clock time
+ * of each frame, and sinks never block on acknowledgements, so frame pacing stays
+ * steady and animations keep their length even when the link is slow.
+ *
+ * The engine keeps track of the frames that the sink hasn't delivered yet. Once
+ * the link is saturated new frames are dropped rather than queued, and the next
+ * frame that goes out is the one for the current time, so a slow link makes the
+ * animation choppier but never makes it fall behind.
+ */
+public class AnimationEngine {
+
+    // Default frame period, 25 frames per second
+    public static final long DEFAULT_FRAME_PERIOD_MILLIS = 40;
+
+    // Default number of undelivered frames at which the link counts as saturated
+    public static final int DEFAULT_MAX_FRAMES_IN_FLIGHT = 2;
+
+    /**
+     * Callback for the end of an animation
+     */
+    public interface Listener {
+
+        /**
+         * Called on the animation thread after the last frame of a non-looping
+         * timeline has been sent
+         * @param timeline The timeline that finished
+         */
+        void onAnimationFinished(Timeline timeline);
+    }
+
+    private final long mFramePeriodMillis;
+    private final int mMaxFramesInFlight;
+    private final ScheduledExecutorService mScheduler;
+    private final ArrayDeque<Future<Boolean>> mFramesInFlight = new ArrayDeque<Future<Boolean>>();
+    private final int[] mFrame = LampChannel.newFrame();
+
+    // Guards the state of the current animation
+    private final Object mLock = new Object();
+
+    private ScheduledFuture<?> mTask = null;
+    private Timeline mTimeline = null;
+    private FrameSink mSink = null;
+    private Listener mListener = null;
+    private long mStartNanos = 0;
+
+    // Statistics for the current (or last) animation
+    private volatile long mFramesRendered = 0, mFramesDropped = 0, mLastFrameNanos = 0;
+
+    /**
+     * Constructor for AnimationEngine using the default frame rate.
+     */
+    public AnimationEngine(){
+        this(DEFAULT_FRAME_PERIOD_MILLIS, DEFAULT_MAX_FRAMES_IN_FLIGHT);
+    }
+
+    /**
+     * Constructor for AnimationEngine.
+     * @param framePeriodMillis Time between frames in milliseconds
+     * @param maxFramesInFlight Number of undelivered frames at which new frames
+     *                          are dropped
+     */
+    public AnimationEngine(long framePeriodMillis, int maxFramesInFlight){
+        mFramePeriodMillis = framePeriodMillis;
+        mMaxFramesInFlight = maxFramesInFlight;
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "SunstoneAnimation");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts playing a timeline, replacing any animation that is already running
+     * @param timeline Timeline to play
+     * @param sink Destination for the frames
+     * @param listener Notified when a non-looping timeline finishes, may be null
+     */
+    public void play(Timeline timeline, FrameSink sink, Listener listener){
+        synchronized (mLock) {
+            stopLocked();
+
+            mTimeline = timeline;
+            mSink = sink;
+            mListener = listener;
+            mSink.beginStream();
+            mStartNanos = System.nanoTime();
+            mLastFrameNanos = mStartNanos;
+            mFramesRendered = 0;
+            mFramesDropped = 0;
+            mTask = mScheduler.scheduleAtFixedRate(mFrameRunner, 0, mFramePeriodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the current animation. No frames are sent after this returns.
+     */
+    public void stop(){
+        synchronized (mLock) {
+            stopLocked();
+        }
+    }
+
+    /**
+     * Checks whether an animation is playing
+     * @return True if an animation is running
+     */
+    public boolean isRunning(){
+        synchronized (mLock) {
+            return mTask != null;
+        }
+    }
+
+    /**
+     * Gets the number of frames sent to the sink by the current (or last) animation
+     * @return Frames rendered
+     */
+    public long getFramesRendered(){
+        return mFramesRendered;
+    }
+
+    /**
+     * Gets the number of frames skipped because the link was saturated
+     * @return Frames dropped
+     */
+    public long getFramesDropped(){
+        return mFramesDropped;
+    }
+
+    /**
+     * Gets the rate at which frames actually went out to the sink
+     * @return Frames rendered per second over the current (or last) animation
+     */
+    public float getAchievedFps(){
+        final long elapsed = mLastFrameNanos - mStartNanos;
+        if (elapsed <= 0){
+            return 0;
+        }
+
+        return mFramesRendered * (float) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * Stops the current animation and the scheduler thread. The engine can't be
+     * used after this.
+     */
+    public void shutdown(){
+        stop();
+        mScheduler.shutdownNow();
+    }
+
+    private void stopLocked(){
+        if (mTask != null){
+            mTask.cancel(false);
+            mTask = null;
+            mSink.endStream();
+        }
+
+        mTimeline = null;
+        mSink = null;
+        mListener = null;
+        mFramesInFlight.clear();
+    }
+
+    /**
+     * Forgets about frames that have been delivered. Must be called holding mLock.
+     * @return True if the link has room for another frame
+     */
+    private boolean hasRoomForFrame(){
+        final Iterator<Future<Boolean>> frames = mFramesInFlight.iterator();
+        while (frames.hasNext()){
+            if (frames.next().isDone()){
+                frames.remove();
+            }
+        }
+
+        return mFramesInFlight.size() < mMaxFramesInFlight;
+    }
+
+    /**
+     * Samples the timeline and sends one frame
+     */
+    private final Runnable mFrameRunner = new Runnable() {
+        @Override
+        public void run() {
+            final Timeline finished;
+            final Listener listener;
+
+            synchronized (mLock) {
+                if (mTask == null){
+                    return;
+                }
+
+                final long now = System.nanoTime();
+                final long elapsed = TimeUnit.NANOSECONDS.toMillis(now - mStartNanos);
+                final boolean done = mTimeline.isFinished(elapsed);
+
+                // The last frame always goes out so the light ends up where the timeline does
+                if (!hasRoomForFrame() && !done){
+                    mFramesDropped++;
+                    return;
+                }
+
+                mTimeline.sample(done ? mTimeline.getDurationMillis() : elapsed, mFrame);
+                final Future<Boolean> frame = mSink.writeFrame(mFrame);
+                if (frame != null){
+                    mFramesInFlight.add(frame);
+                }
+
+                mFramesRendered++;
+                mLastFrameNanos = now;
+
+                if (!done){
+                    return;
+                }
+
+                finished = mTimeline;
+                listener = mListener;
+                stopLocked();
+            }
+
+            if (listener != null){
+                listener.onAnimationFinished(finished);
+            }
+        }
+    };
+}
@@ -0,0 +1,64 @@
+package net.theneophyte.sunstone.app.lighting;
+
+/**
+ * Easing curve used to interpolate between two keyframes.
+ */
+public interface Easing {
+
+    /**
+     * Maps the linear progress through a keyframe segment onto the curve
+     * @param fraction Progress through the segment (0.0 - 1.0)
+     * @return Eased progress, 0.0 at the start and 1.0 at the end of the segment
+     */
+    float apply(float fraction);
+
+    /**
+     * Constant rate of change
+     */
+    Easing LINEAR = new Easing() {
+        @Override
+        public float apply(float fraction) {
+            return fraction;
+        }
+    };
+
+    /**
+     * Starts slow and speeds up
+     */
+    Easing EASE_IN = new Easing() {
+        @Override
+        public float apply(float fraction) {
+            return fraction * fraction;
+        }
+    };
+
+    /**
+     * Starts fast and slows down
+     */
+    Easing EASE_OUT = new Easing() {
+        @Override
+        public float apply(float fraction) {
+            return fraction * (2.0f - fraction);
+        }
+    };
+
+    /**
+     * Slow at both ends, fast in the middle
+     */
+    Easing EASE_IN_OUT = new Easing() {
+        @Override
+        public float apply(float fraction) {
+            return fraction * fraction * (3.0f - 2.0f * fraction);
+        }
+    };
+
+    /**
+     * Jumps to the next value at the end of the segment
+     */
+    Easing STEP = new Easing() {
+        @Override
+        public float apply(float fraction) {
+            return fraction < 1.0f ? 0.0f : 1.0f;
+        }
+    };
+}
@@ -0,0 +1,32 @@
+package net.theneophyte.sunstone.app.lighting;
+
+import java.util.concurrent.Future;
+
+/**
+ * Destination for the frames produced by an {@link AnimationEngine}.
+ */
+public interface FrameSink {
+
+    /**
+     * Sends one frame of channel values as a single batched update. This is called
+     * from the animation thread and must not block waiting for the light.
+     * @param frame 8-bit value per channel, indexed by {@link LampChannel}. Channels set
+     *              to {@link LampChannel#UNCHANGED} must be left alone. The array is
+     *              reused for the next frame, so it must not be kept.
+     * @return Handle that is done once the frame has been delivered, which the engine
+     * uses to track frames in flight. May be null if delivery can't be tracked.
+     */
+    Future<Boolean> writeFrame(int[] frame);
+
+    /**
+     * Called before the first frame of an animation. Sinks can use this to trade
+     * delivery guarantees for throughput while frames are streaming.
+     */
+    void beginStream();
+
+    /**
+     * Called after the last frame of an animation, or when it is stopped. Sinks
+     * should make sure the light settles on the last frame that was sent.
+     */
+    void endStream();
+}
@@ -0,0 +1,62 @@
+package net.theneophyte.sunstone.app.lighting;
+
+/**
+ * Indices of the Sunstone light channels. Frames of channel values are plain
+ * int arrays indexed by these constants, in the same order as the Sunstone
+ * characteristics.
+ */
+public final class LampChannel {
+
+    public static final int WHITE = 0;
+    public static final int COLOR = 1;
+    public static final int WARM  = 2;
+    public static final int COOL  = 3;
+    public static final int RED   = 4;
+    public static final int GREEN = 5;
+    public static final int BLUE  = 6;
+
+    // Number of channels on a Sunstone light
+    public static final int COUNT = 7;
+
+    // Value in a frame for a channel that should be left alone
+    public static final int UNCHANGED = -1;
+
+    private static final String[] NAMES = {"white", "color", "warm", "cool", "red", "green", "blue"};
+
+    private LampChannel(){}
+
+    /**
+     * Gets a readable name for a channel
+     * @param channel Channel index, may be a channel added by newer firmware
+     * @return Channel name
+     */
+    public static String getName(int channel){
+        return channel >= 0 && channel < COUNT ? NAMES[channel] : "channel " + channel;
+    }
+
+    /**
+     * Packs a frame into the value of the packed frame Characteristic, one byte
+     * per channel in LampChannel order
+     * @param frame 8-bit value per channel, at least COUNT long
+     * @param out Array to pack into, at least COUNT long
+     * @return The out array
+     */
+    public static byte[] encode(int[] frame, byte[] out){
+        for (int i = 0; i < COUNT; i++){
+            out[i] = (byte) frame[i];
+        }
+        return out;
+    }
+
+    /**
+     * Creates a frame with every channel left unchanged
+     * @return New frame
+     */
+    public static int[] newFrame(){
+        final int[] frame = new int[COUNT];
+        for (int i = 0; i < COUNT; i++){
+            frame[i] = UNCHANGED;
+        }
+        return frame;
+    }
+}
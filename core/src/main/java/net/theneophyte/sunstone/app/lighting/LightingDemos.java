@@ -0,0 +1,73 @@
+package net.theneophyte.sunstone.app.lighting;
+
+import static net.theneophyte.sunstone.app.lighting.LampChannel.BLUE;
+import static net.theneophyte.sunstone.app.lighting.LampChannel.COLOR;
+import static net.theneophyte.sunstone.app.lighting.LampChannel.COOL;
+import static net.theneophyte.sunstone.app.lighting.LampChannel.GREEN;
+import static net.theneophyte.sunstone.app.lighting.LampChannel.RED;
+import static net.theneophyte.sunstone.app.lighting.LampChannel.WARM;
+import static net.theneophyte.sunstone.app.lighting.LampChannel.WHITE;
+
+/**
+ * Timelines for the demo modes in the app and the alarm sunrise.
+ */
+public final class LightingDemos {
+
+    // Time to fade from one primary color to the next
+    private static final long COLOR_SEGMENT_MILLIS = 12750;
+
+    // Time for each phase of the sunrise
+    private static final long SUNRISE_PHASE_MILLIS = 10200;
+
+    private static final int SUNRISE_GREEN_MIN = 0x10;
+    private static final int SUNRISE_GREEN_MAX = 0x50;
+
+    /**
+     * Color Demo: cycles through the RGB spectrum, fading from blue to red to
+     * green and back to blue.
+     */
+    public static final Timeline COLOR_CYCLE = new Timeline.Builder("color")
+            .at(0)
+                .set(RED, 0).set(GREEN, 0).set(BLUE, 0xFF)
+            .at(COLOR_SEGMENT_MILLIS)
+                .set(RED, 0xFF).set(GREEN, 0).set(BLUE, 0)
+            .at(2 * COLOR_SEGMENT_MILLIS)
+                .set(RED, 0).set(GREEN, 0xFF).set(BLUE, 0)
+            .at(3 * COLOR_SEGMENT_MILLIS)
+                .set(RED, 0).set(GREEN, 0).set(BLUE, 0xFF)
+            .loop(3 * COLOR_SEGMENT_MILLIS)
+            .build();
+
+    /**
+     * Sunrise Demo: starts out as a dim red-orange and brightens to a bright
+     * sunlight hue. The color LEDs fade in while shifting towards yellow, then
+     * the warm white LEDs fade in, then the cool white LEDs.
+     */
+    public static final Timeline SUNRISE = sunrise(3 * SUNRISE_PHASE_MILLIS);
+
+    /**
+     * Builds the sunrise at a different pace, for instance as a wake-up light
+     * @param durationMillis Time from dark to full brightness
+     * @return Sunrise timeline that ends at full brightness
+     */
+    public static Timeline sunrise(long durationMillis){
+        final long phase = durationMillis / 3;
+
+        return new Timeline.Builder("sunrise")
+                .at(0)
+                    .set(RED, 0xFF).set(GREEN, SUNRISE_GREEN_MIN).set(BLUE, 0)
+                    .set(WARM, 0xFF).set(COOL, 0)
+                    .set(COLOR, 0).set(WHITE, 0)
+                .at(phase)
+                    .set(COLOR, 0xFF).set(GREEN, SUNRISE_GREEN_MAX)
+                    .set(WHITE, 0)
+                .at(2 * phase)
+                    .set(WHITE, 0xFF)
+                    .set(COOL, 0)
+                .at(durationMillis)
+                    .set(COOL, 0xFF)
+                .build();
+    }
+
+    private LightingDemos(){}
+}
@@ -0,0 +1,232 @@
+package net.theneophyte.sunstone.app.lighting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keyframe timeline over the Sunstone light channels. Each channel has its own
+ * list of keyframes; between two keyframes the value is interpolated using the
+ * easing curve of the later keyframe. Before its first keyframe a channel holds
+ * the first value, after its last keyframe it holds the last value, and channels
+ * without any keyframes are left unchanged.
+ *
+ * Timelines are immutable and can be sampled from any thread.
+ */
+public class Timeline {
+
+    private final String mName;
+    private final long mDurationMillis;
+    private final boolean mLooping;
+
+    // Per channel keyframe data, null for channels that are not animated
+    private final long[][] mTimes;
+    private final int[][] mValues;
+    private final Easing[][] mEasings;
+
+    private Timeline(Builder builder){
+        mName = builder.mName;
+        mLooping = builder.mLooping;
+
+        mTimes = new long[LampChannel.COUNT][];
+        mValues = new int[LampChannel.COUNT][];
+        mEasings = new Easing[LampChannel.COUNT][];
+
+        long duration = builder.mDurationMillis;
+        for (int channel = 0; channel < LampChannel.COUNT; channel++){
+            final List<Keyframe> keyframes = builder.mKeyframes.get(channel);
+            final int count = keyframes.size();
+            if (count == 0){
+                continue;
+            }
+
+            mTimes[channel] = new long[count];
+            mValues[channel] = new int[count];
+            mEasings[channel] = new Easing[count];
+
+            for (int i = 0; i < count; i++){
+                final Keyframe keyframe = keyframes.get(i);
+                mTimes[channel][i] = keyframe.time;
+                mValues[channel][i] = keyframe.value;
+                mEasings[channel][i] = keyframe.easing;
+            }
+
+            duration = Math.max(duration, mTimes[channel][count - 1]);
+        }
+
+        mDurationMillis = duration;
+    }
+
+    /**
+     * Gets the name of the timeline
+     * @return Timeline name
+     */
+    public String getName(){
+        return mName;
+    }
+
+    /**
+     * Gets the length of the timeline. For looping timelines this is the loop period.
+     * @return Duration in milliseconds
+     */
+    public long getDurationMillis(){
+        return mDurationMillis;
+    }
+
+    /**
+     * Checks whether the timeline starts over once it reaches its end
+     * @return True if the timeline loops
+     */
+    public boolean isLooping(){
+        return mLooping;
+    }
+
+    /**
+     * Checks whether a non-looping timeline has played all the way through
+     * @param elapsedMillis Time since the start of the timeline
+     * @return True if the timeline is finished
+     */
+    public boolean isFinished(long elapsedMillis){
+        return !mLooping && elapsedMillis >= mDurationMillis;
+    }
+
+    /**
+     * Computes the channel values at a point in time
+     * @param elapsedMillis Time since the start of the timeline
+     * @param frame Output array with one value per channel. Channels that are not
+     *              animated are set to {@link LampChannel#UNCHANGED}.
+     */
+    public void sample(long elapsedMillis, int[] frame){
+        long time = elapsedMillis;
+        if (mLooping && mDurationMillis > 0){
+            time %= mDurationMillis;
+        }
+
+        for (int channel = 0; channel < LampChannel.COUNT; channel++){
+            final long[] times = mTimes[channel];
+            if (times == null){
+                frame[channel] = LampChannel.UNCHANGED;
+                continue;
+            }
+
+            final int[] values = mValues[channel];
+            final int last = times.length - 1;
+
+            if (time <= times[0]){
+                frame[channel] = values[0];
+            } else if (time >= times[last]){
+                frame[channel] = values[last];
+            } else {
+                // Keyframe lists are short, a linear search beats anything clever here
+                int next = 1;
+                while (times[next] < time){
+                    next++;
+                }
+
+                final long start = times[next - 1];
+                final float fraction = (float) (time - start) / (times[next] - start);
+                final float eased = mEasings[channel][next].apply(fraction);
+                final int from = values[next - 1];
+
+                frame[channel] = from + Math.round((values[next] - from) * eased);
+            }
+        }
+    }
+
+    /**
+     * A single channel value at a point in time
+     */
+    private static class Keyframe {
+        final long time;
+        final int value;
+        final Easing easing;
+
+        Keyframe(long time, int value, Easing easing){
+            this.time = time;
+            this.value = value;
+            this.easing = easing;
+        }
+    }
+
+    /**
+     * Builds a Timeline one keyframe at a time. Keyframes for a channel must be
+     * added in time order.
+     */
+    public static class Builder {
+
+        private final String mName;
+        private final List<List<Keyframe>> mKeyframes;
+        private long mDurationMillis = 0;
+        private boolean mLooping = false;
+        private long mTime = 0;
+        private Easing mEasing = Easing.LINEAR;
+
+        /**
+         * Constructor for Builder.
+         * @param name Name of the timeline, for logging
+         */
+        public Builder(String name){
+            mName = name;
+            mKeyframes = new ArrayList<List<Keyframe>>(LampChannel.COUNT);
+            for (int i = 0; i < LampChannel.COUNT; i++){
+                mKeyframes.add(new ArrayList<Keyframe>());
+            }
+        }
+
+        /**
+         * Moves to a new point in time. Values set after this call are reached at
+         * this time, using linear interpolation from the previous keyframe.
+         * @param timeMillis Time since the start of the timeline
+         * @return This builder
+         */
+        public Builder at(long timeMillis){
+            return at(timeMillis, Easing.LINEAR);
+        }
+
+        /**
+         * Moves to a new point in time. Values set after this call are reached at
+         * this time, following the given curve from the previous keyframe.
+         * @param timeMillis Time since the start of the timeline
+         * @param easing Curve used to get to the new values
+         * @return This builder
+         */
+        public Builder at(long timeMillis, Easing easing){
+            if (timeMillis < mTime){
+                throw new IllegalArgumentException("Keyframes must be added in time order");
+            }
+
+            mTime = timeMillis;
+            mEasing = easing;
+            return this;
+        }
+
+        /**
+         * Adds a keyframe for a channel at the current point in time
+         * @param channel Channel index from {@link LampChannel}
+         * @param value 8-bit channel value (0-255)
+         * @return This builder
+         */
+        public Builder set(int channel, int value){
+            mKeyframes.get(channel).add(new Keyframe(mTime, value & 0xFF, mEasing));
+            return this;
+        }
+
+        /**
+         * Makes the timeline start over once it reaches its end
+         * @param durationMillis Loop period, at least as long as the last keyframe
+         * @return This builder
+         */
+        public Builder loop(long durationMillis){
+            mLooping = true;
+            mDurationMillis = durationMillis;
+            return this;
+        }
+
+        /**
+         * Creates the timeline
+         * @return New Timeline
+         */
+        public Timeline build(){
+            return new Timeline(this);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package net.theneophyte.sunstone.app.protocol;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion handle for a batch of characteristic writes, such as one animation
+ * frame. The batch is done once every write in it is done, and succeeds only if
+ * every write succeeded.
+ */
+public class BatchWriteFuture implements Future<Boolean> {
+
+    private final WriteFuture[] mWrites;
+
+    /**
+     * Constructor for BatchWriteFuture.
+     * @param writes Handles of the writes in the batch. Null entries are ignored.
+     */
+    public BatchWriteFuture(WriteFuture[] writes){
+        mWrites = writes;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning){
+        boolean cancelled = false;
+        for (WriteFuture write : mWrites){
+            if (write != null){
+                cancelled |= write.cancel(mayInterruptIfRunning);
+            }
+        }
+        return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled(){
+        for (WriteFuture write : mWrites){
+            if (write != null && write.isCancelled()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isDone(){
+        for (WriteFuture write : mWrites){
+            if (write != null && !write.isDone()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean get() throws InterruptedException {
+        boolean success = true;
+        for (WriteFuture write : mWrites){
+            if (write != null){
+                success &= write.get();
+            }
+        }
+        return success;
+    }
+
+    @Override
+    public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean success = true;
+
+        for (WriteFuture write : mWrites){
+            if (write != null){
+                success &= write.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Blocks until every write in the batch finishes or the timeout runs out.
+     * Timeouts and cancellations are reported as a failed batch.
+     * @param timeoutMillis Maximum time to wait in milliseconds
+     * @return True if every write was acknowledged in time
+     * @throws InterruptedException If the waiting thread was interrupted
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        for (WriteFuture write : mWrites){
+            if (write != null && !write.await(Math.max(deadline - System.currentTimeMillis(), 0))){
+                return false;
+            }
+        }
+        return true;
+    }
+}
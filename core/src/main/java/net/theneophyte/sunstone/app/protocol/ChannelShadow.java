@@ -0,0 +1,153 @@
+package net.theneophyte.sunstone.app.protocol;
+
+import java.util.BitSet;
+
+/**
+ * Local shadow of the channel values of one lamp. The confirmed value is the one
+ * last read, notified or acknowledged by the lamp. The desired value is the last
+ * one requested, and a channel is dirty while the two may differ. A write of a
+ * value the lamp is known to hold already is not needed at all.
+ *
+ * All methods are thread safe.
+ */
+public class ChannelShadow {
+
+    private int[] mValues;
+    private int[] mDesired;
+    private int mCount;
+
+    // Channels whose value came from the lamp, and channels with a desired value not confirmed yet
+    private final BitSet mConfirmed = new BitSet();
+    private final BitSet mDirty = new BitSet();
+
+    /**
+     * Constructor for ChannelShadow.
+     * @param count Number of channels
+     */
+    public ChannelShadow(int count){
+        mValues = new int[count];
+        mDesired = new int[count];
+        mCount = count;
+    }
+
+    /**
+     * Changes the number of channels. Everything known about the lamp is dropped
+     * if the number differs.
+     * @param count Number of channels
+     */
+    public synchronized void resize(int count){
+        if (count == mCount){
+            return;
+        }
+
+        mValues = new int[count];
+        mDesired = new int[count];
+        mCount = count;
+        mConfirmed.clear();
+        mDirty.clear();
+    }
+
+    /**
+     * Gets the number of channels
+     * @return Channel count
+     */
+    public synchronized int getChannelCount(){
+        return mCount;
+    }
+
+    /**
+     * Gets the last confirmed value of a channel
+     * @param channel Channel id
+     * @return 8-bit value, 0 if it is unknown
+     */
+    public synchronized int getValue(int channel){
+        return channel >= 0 && channel < mCount ? mValues[channel] : 0;
+    }
+
+    /**
+     * Records a value requested for a channel
+     * @param channel Channel id
+     * @param value 8-bit value
+     * @return False if the lamp is known to hold the value already and nothing
+     * else is on its way, so the write can be skipped
+     */
+    public synchronized boolean setDesired(int channel, int value){
+        if (channel < 0 || channel >= mCount){
+            return true;
+        }
+
+        value &= 0xFF;
+        if (!mDirty.get(channel) && mConfirmed.get(channel) && mValues[channel] == value){
+            return false;
+        }
+
+        mDesired[channel] = value;
+        mDirty.set(channel);
+        return true;
+    }
+
+    /**
+     * Records a value confirmed by the lamp. The channel is clean again if it is
+     * the desired value.
+     * @param channel Channel id
+     * @param value 8-bit value
+     * @return False if there is no such channel
+     */
+    public synchronized boolean confirm(int channel, int value){
+        if (channel < 0 || channel >= mCount){
+            return false;
+        }
+
+        mValues[channel] = value & 0xFF;
+        mConfirmed.set(channel);
+        if (mDirty.get(channel) && mDesired[channel] == mValues[channel]){
+            mDirty.clear(channel);
+        }
+        return true;
+    }
+
+    /**
+     * Gives up on a desired value after its write failed, so requesting it again
+     * isn't mistaken for a duplicate
+     * @param channel Channel id
+     * @param value 8-bit value of the failed write
+     */
+    public synchronized void revert(int channel, int value){
+        if (channel >= 0 && channel < mCount && mDirty.get(channel) && mDesired[channel] == (value & 0xFF)){
+            mDirty.clear(channel);
+        }
+    }
+
+    /**
+     * Checks whether a channel has a desired value the lamp hasn't confirmed
+     * @param channel Channel id
+     * @return True if the channel is dirty
+     */
+    public synchronized boolean isDirty(int channel){
+        return channel >= 0 && channel < mCount && mDirty.get(channel);
+    }
+
+    /**
+     * Gets the last value requested for a channel
+     * @param channel Channel id
+     * @return 8-bit value, only meaningful while the channel is dirty
+     */
+    public synchronized int getDesired(int channel){
+        return channel >= 0 && channel < mCount ? mDesired[channel] : 0;
+    }
+
+    /**
+     * Stops trusting the confirmed values, for when the lamp may be changed by
+     * someone else while we're away. Desired values are kept.
+     */
+    public synchronized void forgetConfirmed(){
+        mConfirmed.clear();
+    }
+
+    /**
+     * Drops every desired value that hasn't been confirmed
+     */
+    public synchronized void discardDesired(){
+        mDirty.clear();
+    }
+}
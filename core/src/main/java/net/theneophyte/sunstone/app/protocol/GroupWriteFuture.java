@@ -0,0 +1,73 @@
+package net.theneophyte.sunstone.app.protocol;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion handle for one update sent to several lamps. The update is done once
+ * every lamp it tracks is done, and succeeds only if every one of them succeeded.
+ */
+public class GroupWriteFuture implements Future<Boolean> {
+
+    private final List<Future<Boolean>> mWrites;
+
+    /**
+     * Constructor for GroupWriteFuture.
+     * @param writes Handles of the per-lamp writes
+     */
+    public GroupWriteFuture(List<Future<Boolean>> writes){
+        mWrites = writes;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning){
+        boolean cancelled = false;
+        for (Future<Boolean> write : mWrites){
+            cancelled |= write.cancel(mayInterruptIfRunning);
+        }
+        return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled(){
+        for (Future<Boolean> write : mWrites){
+            if (write.isCancelled()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isDone(){
+        for (Future<Boolean> write : mWrites){
+            if (!write.isDone()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean get() throws InterruptedException, ExecutionException {
+        boolean success = true;
+        for (Future<Boolean> write : mWrites){
+            success &= write.get();
+        }
+        return success;
+    }
+
+    @Override
+    public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean success = true;
+
+        for (Future<Boolean> write : mWrites){
+            success &= write.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        }
+        return success;
+    }
+}
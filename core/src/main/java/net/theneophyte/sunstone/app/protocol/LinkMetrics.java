@@ -0,0 +1,256 @@
+package net.theneophyte.sunstone.app.protocol;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters for one lamp link, cheap enough to record on every write. Write round
+ * trip times go into a histogram with power of two buckets, so recording is a few
+ * comparisons and an increment, and percentiles can still be estimated.
+ *
+ * All methods are thread safe.
+ */
+public class LinkMetrics {
+
+    // Upper bound of each round trip bucket in milliseconds, the last bucket takes the rest
+    private static final long[] RTT_BUCKET_MILLIS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    private static final long NANOS_PER_MILLI = 1000000;
+    private static final long NANOS_PER_SECOND = 1000000000;
+
+    /**
+     * Point in time copy of the counters
+     */
+    public static class Snapshot {
+        private final long[] mRttBuckets;
+        private final long mWrites, mWritesPerSecond, mCoalesced, mSuppressed, mFailed;
+        private final long mConnects, mScanMillis;
+        private final Map<Integer, Long> mGattErrors;
+
+        private Snapshot(LinkMetrics metrics, long scanMillis){
+            mRttBuckets = metrics.mRttBuckets.clone();
+            mWrites = metrics.mWrites;
+            mWritesPerSecond = metrics.mLastSecondWrites;
+            mCoalesced = metrics.mCoalesced;
+            mSuppressed = metrics.mSuppressed;
+            mFailed = metrics.mFailed;
+            mConnects = metrics.mConnects;
+            mGattErrors = new TreeMap<Integer, Long>(metrics.mGattErrors);
+            mScanMillis = scanMillis;
+        }
+
+        /**
+         * Gets the number of writes acknowledged by the lamp
+         * @return Write count
+         */
+        public long getWrites(){
+            return mWrites;
+        }
+
+        /**
+         * Gets the number of writes acknowledged during the last full second
+         * @return Writes per second
+         */
+        public long getWritesPerSecond(){
+            return mWritesPerSecond;
+        }
+
+        /**
+         * Gets the number of values merged into a write that was still waiting
+         * @return Value count
+         */
+        public long getCoalesced(){
+            return mCoalesced;
+        }
+
+        /**
+         * Gets the number of writes skipped because the lamp already held the value
+         * @return Write count
+         */
+        public long getSuppressed(){
+            return mSuppressed;
+        }
+
+        /**
+         * Gets the number of writes that failed or were dropped for good
+         * @return Write count
+         */
+        public long getFailed(){
+            return mFailed;
+        }
+
+        /**
+         * Gets the number of times the link came back after the first connection
+         * @return Reconnect count
+         */
+        public long getReconnects(){
+            return Math.max(0, mConnects - 1);
+        }
+
+        /**
+         * Gets the time spent scanning for the lamp
+         * @return Time in milliseconds
+         */
+        public long getScanMillis(){
+            return mScanMillis;
+        }
+
+        /**
+         * Gets the GATT error statuses seen
+         * @return Count per status code
+         */
+        public Map<Integer, Long> getGattErrors(){
+            return mGattErrors;
+        }
+
+        /**
+         * Estimates a round trip time percentile from the histogram
+         * @param percentile Percentile, from 0 to 100
+         * @return Upper bound of the bucket holding the percentile in milliseconds,
+         * 0 if no write has been acknowledged yet
+         */
+        public long getRttPercentileMillis(int percentile){
+            long total = 0;
+            for (long count : mRttBuckets){
+                total += count;
+            }
+            if (total == 0){
+                return 0;
+            }
+
+            final long rank = (total * percentile + 99) / 100;
+            long seen = 0;
+            for (int bucket = 0; bucket < mRttBuckets.length; bucket++){
+                seen += mRttBuckets[bucket];
+                if (seen >= rank && seen > 0){
+                    return bucket < RTT_BUCKET_MILLIS.length
+                            ? RTT_BUCKET_MILLIS[bucket]
+                            : RTT_BUCKET_MILLIS[RTT_BUCKET_MILLIS.length - 1] * 2;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Formats the round trip histogram, one bucket per line
+         * @return Histogram text
+         */
+        public String formatHistogram(){
+            final StringBuilder text = new StringBuilder();
+            for (int bucket = 0; bucket < mRttBuckets.length; bucket++){
+                text.append(bucket < RTT_BUCKET_MILLIS.length ? "<=" + RTT_BUCKET_MILLIS[bucket] : ">" + RTT_BUCKET_MILLIS[bucket - 1])
+                        .append(" ms: ")
+                        .append(mRttBuckets[bucket])
+                        .append('\n');
+            }
+            return text.toString();
+        }
+
+        @Override
+        public String toString(){
+            return "writes " + mWrites + " (" + mWritesPerSecond + "/s)"
+                    + ", rtt p50 " + getRttPercentileMillis(50) + " ms"
+                    + ", p95 " + getRttPercentileMillis(95) + " ms"
+                    + "\ncoalesced " + mCoalesced
+                    + ", suppressed " + mSuppressed
+                    + ", failed " + mFailed
+                    + "\nreconnects " + getReconnects()
+                    + ", scanning " + mScanMillis + " ms"
+                    + "\ngatt errors " + mGattErrors;
+        }
+    }
+
+    private final long[] mRttBuckets = new long[RTT_BUCKET_MILLIS.length + 1];
+    private long mWrites = 0, mCoalesced = 0, mSuppressed = 0, mFailed = 0, mConnects = 0;
+    private final Map<Integer, Long> mGattErrors = new TreeMap<Integer, Long>();
+
+    // Writes acknowledged during the current and the last full second
+    private long mSecondStartNanos = System.nanoTime();
+    private long mSecondWrites = 0, mLastSecondWrites = 0;
+
+    /**
+     * Records an acknowledged write
+     * @param rttNanos Time from starting the write to the acknowledgement
+     */
+    public synchronized void recordWrite(long rttNanos){
+        final long rttMillis = rttNanos / NANOS_PER_MILLI;
+
+        int bucket = 0;
+        while (bucket < RTT_BUCKET_MILLIS.length && rttMillis > RTT_BUCKET_MILLIS[bucket]){
+            bucket++;
+        }
+        mRttBuckets[bucket]++;
+        mWrites++;
+
+        rollSecond();
+        mSecondWrites++;
+    }
+
+    /**
+     * Records a value merged into a write that was still waiting
+     */
+    public synchronized void recordCoalesced(){
+        mCoalesced++;
+    }
+
+    /**
+     * Records a write skipped because the lamp already held the value
+     */
+    public synchronized void recordSuppressed(){
+        mSuppressed++;
+    }
+
+    /**
+     * Records a write that failed or was dropped for good
+     */
+    public synchronized void recordFailed(){
+        mFailed++;
+    }
+
+    /**
+     * Records a GATT status other than success
+     * @param status Status code from a GATT callback
+     */
+    public synchronized void recordGattError(int status){
+        final Long count = mGattErrors.get(status);
+        mGattErrors.put(status, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * Records the link coming up
+     */
+    public synchronized void recordConnect(){
+        mConnects++;
+    }
+
+    /**
+     * Gets the number of writes skipped because the lamp already held the value
+     * @return Write count
+     */
+    public synchronized long getSuppressed(){
+        return mSuppressed;
+    }
+
+    /**
+     * Copies the counters
+     * @param scanMillis Time spent scanning, kept by the scanner
+     * @return The snapshot
+     */
+    public synchronized Snapshot snapshot(long scanMillis){
+        rollSecond();
+        return new Snapshot(this, scanMillis);
+    }
+
+    private void rollSecond(){
+        final long now = System.nanoTime();
+        final long elapsed = now - mSecondStartNanos;
+        if (elapsed < NANOS_PER_SECOND){
+            return;
+        }
+
+        // A second without writes in between means the rate has dropped to nothing
+        mLastSecondWrites = elapsed < 2 * NANOS_PER_SECOND ? mSecondWrites : 0;
+        mSecondWrites = 0;
+        mSecondStartNanos = now - elapsed % NANOS_PER_SECOND;
+    }
+}
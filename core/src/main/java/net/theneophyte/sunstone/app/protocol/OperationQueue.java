@@ -0,0 +1,309 @@
+package net.theneophyte.sunstone.app.protocol;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Serializes every operation on a connection. Android silently drops any GATT
+ * operation issued while another one is outstanding, so everything goes through
+ * this queue: the highest priority operation is started once the link is free,
+ * and equal priorities go in the order they were queued.
+ *
+ * Every operation in flight has a timeout. An operation that times out or fails
+ * is retried until it runs out of retries and is then failed, so a single stuck
+ * operation can never wedge the link. An operation the connection refuses to
+ * start never went on the air, so it keeps its place at the head of the line and
+ * is started again on the next callback or shortly after.
+ *
+ * All methods synchronize on the queue, so callers can hold the queue's lock
+ * while they update state that has to stay consistent with it.
+ * @param <C> Type of the connection operations are issued on
+ */
+public class OperationQueue<C> {
+
+    /**
+     * Runs the timeouts and retries of the queue, such as an Android Handler does
+     */
+    public interface Timer {
+
+        /**
+         * Runs a Runnable once a delay has passed
+         * @param runnable Runnable to run
+         * @param delayMillis Delay before running it
+         */
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        /**
+         * Drops a Runnable that hasn't run yet
+         * @param runnable Runnable passed to postDelayed
+         */
+        void removeCallbacks(Runnable runnable);
+    }
+
+    // Delay before trying again when the connection refuses to start an operation
+    private static final long RETRY_DELAY_MILLIS = 20;
+
+    private final Timer mTimer;
+    private final PriorityQueue<QueuedOperation<C>> mQueue;
+    private final List<QueuedOperation<C>> mInFlight = new ArrayList<QueuedOperation<C>>();
+
+    /*
+        Attempts that timed out while their callback may still be on its way. A
+        retry has the same target, so a late callback would otherwise complete the
+        retry before its own attempt has been answered. Each one swallows the next
+        callback for its target, or is forgotten after another timeout period in
+        case the callback was lost for good.
+     */
+    private final List<LateCallback> mTimedOut = new ArrayList<LateCallback>();
+
+    private C mConnection = null;
+    private long mNextSequence = 0;
+
+    /**
+     * Constructor for OperationQueue.
+     * @param timer Timer used for timeouts and retries
+     */
+    public OperationQueue(Timer timer){
+        mTimer = timer;
+        mQueue = new PriorityQueue<QueuedOperation<C>>(16, new Comparator<QueuedOperation<C>>() {
+            @Override
+            public int compare(QueuedOperation<C> lhs, QueuedOperation<C> rhs) {
+                if (lhs.priority != rhs.priority){
+                    return lhs.priority < rhs.priority ? -1 : 1;
+                }
+                return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Sets the connection operations are issued on, and starts any that are waiting
+     * @param connection The connection, or null to hold everything in the queue
+     */
+    public synchronized void setConnection(C connection){
+        mConnection = connection;
+        startNext();
+    }
+
+    /**
+     * Adds an operation and starts it if the link is free
+     * @param operation Operation to queue
+     */
+    public synchronized void enqueue(QueuedOperation<C> operation){
+        operation.sequence = mNextSequence++;
+        mQueue.add(operation);
+        startNext();
+    }
+
+    /**
+     * Adds several operations before starting any of them, so the highest
+     * priority one goes first
+     * @param operations Operations to queue
+     */
+    public synchronized void enqueueAll(List<? extends QueuedOperation<C>> operations){
+        for (QueuedOperation<C> operation : operations){
+            operation.sequence = mNextSequence++;
+            mQueue.add(operation);
+        }
+        startNext();
+    }
+
+    /**
+     * Raises the priority of an operation that is still waiting in the queue
+     * @param operation Queued operation
+     * @param priority New priority, ignored if it is lower than the current one
+     */
+    public synchronized void raisePriority(QueuedOperation<C> operation, int priority){
+        if (priority < operation.priority && mQueue.remove(operation)){
+            operation.priority = priority;
+            mQueue.add(operation);
+        }
+    }
+
+    /**
+     * Reports a callback. The oldest operation in flight that belongs to the
+     * callback is finished, or retried if it failed. A late callback of an
+     * attempt that already timed out is dropped.
+     * @param target Target reported by the callback, such as a Characteristic
+     * @param success True if the callback reported success
+     */
+    public synchronized void onCallback(Object target, boolean success){
+        final Iterator<LateCallback> timedOut = mTimedOut.iterator();
+        while (timedOut.hasNext()){
+            final LateCallback lateCallback = timedOut.next();
+            if (lateCallback.operation.isCompletedBy(target)){
+                timedOut.remove();
+                mTimer.removeCallbacks(lateCallback);
+                onLateCallback(target);
+                startNext();
+                return;
+            }
+        }
+
+        final Iterator<QueuedOperation<C>> inFlight = mInFlight.iterator();
+        while (inFlight.hasNext()){
+            final QueuedOperation<C> operation = inFlight.next();
+            if (operation.isCompletedBy(target)){
+                inFlight.remove();
+                mTimer.removeCallbacks(operation.timeoutRunner);
+
+                if (success){
+                    operation.finish(true);
+                } else {
+                    retryOrFail(operation);
+                }
+                break;
+            }
+        }
+
+        startNext();
+    }
+
+    /**
+     * Fails every queued and outstanding operation, for when the link goes down
+     */
+    public synchronized void clear(){
+        for (QueuedOperation<C> operation : mInFlight){
+            mTimer.removeCallbacks(operation.timeoutRunner);
+            operation.finish(false);
+        }
+        mInFlight.clear();
+
+        for (LateCallback lateCallback : mTimedOut){
+            mTimer.removeCallbacks(lateCallback);
+        }
+        mTimedOut.clear();
+
+        QueuedOperation<C> operation;
+        while ((operation = mQueue.poll()) != null){
+            operation.finish(false);
+        }
+
+        mTimer.removeCallbacks(mRetryRunner);
+    }
+
+    /**
+     * Gets the number of operations waiting or on the air
+     * @return Operation count
+     */
+    public synchronized int size(){
+        return mQueue.size() + mInFlight.size();
+    }
+
+    /**
+     * Called with the queue's lock held when an operation timed out
+     * @param operation The operation, which is retried or failed next
+     */
+    protected void onTimeout(QueuedOperation<C> operation){
+    }
+
+    /**
+     * Called with the queue's lock held when a callback is dropped because its
+     * attempt had already timed out
+     * @param target Target reported by the callback
+     */
+    protected void onLateCallback(Object target){
+    }
+
+    /**
+     * Starts the next queued operation once nothing is outstanding. Android refuses
+     * a second operation while one is on the air, writes without response included.
+     */
+    private void startNext(){
+        while (mConnection != null && !mQueue.isEmpty() && mInFlight.isEmpty()){
+            final QueuedOperation<C> next = mQueue.poll();
+
+            if (next.isAbandoned()){
+                next.finish(false);
+                continue;
+            }
+
+            if (!next.start(mConnection)){
+                // The connection is busy with something we don't know about, nothing
+                // behind this operation can start either, so wait for it to free up
+                mQueue.add(next);
+                mTimer.removeCallbacks(mRetryRunner);
+                mTimer.postDelayed(mRetryRunner, RETRY_DELAY_MILLIS);
+                return;
+            }
+
+            if (!next.needsCallback()){
+                next.finish(true);
+                continue;
+            }
+
+            mInFlight.add(next);
+            next.timeoutRunner = new TimeoutRunner(next);
+            mTimer.postDelayed(next.timeoutRunner, next.timeoutMillis);
+        }
+    }
+
+    private void retryOrFail(QueuedOperation<C> operation){
+        if (operation.retriesLeft > 0 && operation.prepareRetry()){
+            operation.retriesLeft--;
+            mQueue.add(operation);
+        } else {
+            operation.finish(false);
+        }
+    }
+
+    /**
+     * Retries starting operations after the connection refused one
+     */
+    private final Runnable mRetryRunner = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (OperationQueue.this) {
+                startNext();
+            }
+        }
+    };
+
+    /**
+     * Gives up on an operation whose callback never arrived
+     */
+    private class TimeoutRunner implements Runnable {
+        private final QueuedOperation<C> mOperation;
+
+        TimeoutRunner(QueuedOperation<C> operation){
+            mOperation = operation;
+        }
+
+        @Override
+        public void run() {
+            synchronized (OperationQueue.this) {
+                if (mInFlight.remove(mOperation)){
+                    onTimeout(mOperation);
+
+                    final LateCallback lateCallback = new LateCallback(mOperation);
+                    mTimedOut.add(lateCallback);
+                    mTimer.postDelayed(lateCallback, mOperation.timeoutMillis);
+
+                    retryOrFail(mOperation);
+                    startNext();
+                }
+            }
+        }
+    }
+
+    /**
+     * Expected late callback of a timed out attempt, forgets about it when run
+     */
+    private class LateCallback implements Runnable {
+        final QueuedOperation<C> operation;
+
+        LateCallback(QueuedOperation<C> operation){
+            this.operation = operation;
+        }
+
+        @Override
+        public void run() {
+            synchronized (OperationQueue.this) {
+                mTimedOut.remove(this);
+            }
+        }
+    }
+}
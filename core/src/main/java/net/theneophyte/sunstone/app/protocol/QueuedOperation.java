@@ -0,0 +1,85 @@
+package net.theneophyte.sunstone.app.protocol;
+
+/**
+ * A single operation waiting in an {@link OperationQueue}. Every operation
+ * carries its own priority, timeout and number of retries.
+ * @param <C> Type of the connection the operation is issued on
+ */
+public abstract class QueuedOperation<C> {
+
+    // User-initiated writes, and link settings that make them faster
+    public static final int PRIORITY_INTERACTIVE = 0;
+
+    // Animation frames
+    public static final int PRIORITY_ANIMATION   = 1;
+
+    // Reads and subscriptions nobody is actively waiting on
+    public static final int PRIORITY_BACKGROUND  = 2;
+
+    int priority;
+    int retriesLeft;
+    final long timeoutMillis;
+
+    // Order in which the operation was queued, breaks ties between equal priorities
+    long sequence;
+
+    // Fails the operation if its callback doesn't arrive in time, set by the queue
+    Runnable timeoutRunner;
+
+    /**
+     * Constructor for QueuedOperation.
+     * @param priority One of the PRIORITY constants, lower goes first
+     * @param timeoutMillis Time to wait for the callback before giving up
+     * @param retries Number of times to try again after a failure or timeout
+     */
+    protected QueuedOperation(int priority, long timeoutMillis, int retries){
+        this.priority = priority;
+        this.timeoutMillis = timeoutMillis;
+        this.retriesLeft = retries;
+    }
+
+    /**
+     * Issues the operation
+     * @param connection The connection to issue it on
+     * @return False if the connection refused the operation
+     */
+    protected abstract boolean start(C connection);
+
+    /**
+     * Checks whether a callback belongs to this operation
+     * @param target Target reported by the callback, such as a Characteristic
+     * @return True if the callback completes this operation
+     */
+    protected abstract boolean isCompletedBy(Object target);
+
+    /**
+     * Called once when the operation is done for good
+     * @param success True if the operation succeeded
+     */
+    protected abstract void finish(boolean success);
+
+    /**
+     * Checks whether the operation ends with a callback. Operations that
+     * don't are finished as soon as they have been issued.
+     * @return True if the queue has to wait for a callback
+     */
+    protected boolean needsCallback(){
+        return true;
+    }
+
+    /**
+     * Checks whether nobody wants the result anymore
+     * @return True if the operation can be skipped
+     */
+    protected boolean isAbandoned(){
+        return false;
+    }
+
+    /**
+     * Gets the operation ready to be queued again after a failure
+     * @return False if the operation should not be retried after all
+     */
+    protected boolean prepareRetry(){
+        return true;
+    }
+}
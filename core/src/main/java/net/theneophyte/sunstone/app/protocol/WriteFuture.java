@@ -0,0 +1,150 @@
+package net.theneophyte.sunstone.app.protocol;
+
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Completion handle for a single characteristic write requested through
+ * the lamp stack. A waiting thread blocks on the handle instead of polling,
+ * so it uses no CPU until the write is acknowledged, fails or times out.
+ *
+ * Writes to the same characteristic are coalesced, so a handle whose value was
+ * replaced by a newer one completes once the newer value has been written.
+ */
+public class WriteFuture implements Future<Boolean> {
+
+    private static final int STATE_PENDING   = 0;
+    private static final int STATE_SUCCEEDED = 1;
+    private static final int STATE_FAILED    = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private final UUID mCharUuid;
+    private final CountDownLatch mDoneLatch = new CountDownLatch(1);
+    private final AtomicInteger mState = new AtomicInteger(STATE_PENDING);
+
+    /**
+     * Constructor for WriteFuture.
+     * @param charUuid UUID of the characteristic being written
+     */
+    public WriteFuture(UUID charUuid){
+        mCharUuid = charUuid;
+    }
+
+    /**
+     * Creates a handle for a write that could not be requested at all
+     * @param charUuid UUID of the characteristic that was to be written
+     * @return A handle that has already failed
+     */
+    public static WriteFuture failed(UUID charUuid){
+        final WriteFuture future = new WriteFuture(charUuid);
+        future.complete(false);
+        return future;
+    }
+
+    /**
+     * Creates a handle for a write that wasn't needed, because Sunstone already
+     * holds the value
+     * @param charUuid UUID of the characteristic that was to be written
+     * @return A handle that has already succeeded
+     */
+    public static WriteFuture succeeded(UUID charUuid){
+        final WriteFuture future = new WriteFuture(charUuid);
+        future.complete(true);
+        return future;
+    }
+
+    /**
+     * Gets the characteristic this write is for
+     * @return Characteristic UUID
+     */
+    public UUID getCharacteristicUuid(){
+        return mCharUuid;
+    }
+
+    /**
+     * Marks the write as finished and wakes up any waiting threads
+     * @param success True if the write was acknowledged by Sunstone
+     * @return False if the handle was already done
+     */
+    public boolean complete(boolean success){
+        if (mState.compareAndSet(STATE_PENDING, success ? STATE_SUCCEEDED : STATE_FAILED)) {
+            mDoneLatch.countDown();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Stops waiting for the write. If the value has not been sent yet and no one
+     * else is waiting on it, the write is dropped, otherwise it still goes out.
+     * @param mayInterruptIfRunning Ignored, no thread runs on behalf of a write
+     * @return False if the handle was already done
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning){
+        if (mState.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+            mDoneLatch.countDown();
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled(){
+        return mState.get() == STATE_CANCELLED;
+    }
+
+    @Override
+    public boolean isDone(){
+        return mState.get() != STATE_PENDING;
+    }
+
+    /**
+     * Checks whether the write completed and was acknowledged
+     * @return True if the write succeeded
+     */
+    public boolean isSuccessful(){
+        return mState.get() == STATE_SUCCEEDED;
+    }
+
+    @Override
+    public Boolean get() throws InterruptedException {
+        mDoneLatch.await();
+        return result();
+    }
+
+    @Override
+    public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!mDoneLatch.await(timeout, unit)) {
+            throw new TimeoutException("Write to " + mCharUuid + " timed out");
+        }
+
+        return result();
+    }
+
+    /**
+     * Blocks until the write finishes or the timeout runs out. Unlike get(), a
+     * timeout or cancellation is reported as a failed write instead of an exception.
+     * @param timeoutMillis Maximum time to wait in milliseconds
+     * @return True if the write was acknowledged in time
+     * @throws InterruptedException If the waiting thread was interrupted
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        return mDoneLatch.await(timeoutMillis, TimeUnit.MILLISECONDS) && isSuccessful();
+    }
+
+    private Boolean result(){
+        if (isCancelled()) {
+            throw new CancellationException("Write to " + mCharUuid + " was cancelled");
+        }
+
+        return isSuccessful();
+    }
+}
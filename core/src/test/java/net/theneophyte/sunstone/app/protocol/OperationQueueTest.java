@@ -0,0 +1,239 @@
+package net.theneophyte.sunstone.app.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the operation queue against a connection that records what is started on it,
+ * with timeouts driven by hand.
+ */
+public class OperationQueueTest {
+
+    private static final long TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Timer that only moves when the test advances it
+     */
+    private static class ManualTimer implements OperationQueue.Timer {
+        private final List<Runnable> mRunnables = new ArrayList<Runnable>();
+        private final List<Long> mTimes = new ArrayList<Long>();
+        private long mNow = 0;
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis){
+            mRunnables.add(runnable);
+            mTimes.add(mNow + delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable){
+            int index;
+            while ((index = mRunnables.indexOf(runnable)) >= 0){
+                mRunnables.remove(index);
+                mTimes.remove(index);
+            }
+        }
+
+        void advance(long millis){
+            mNow += millis;
+
+            boolean ran = true;
+            while (ran){
+                ran = false;
+                for (int i = 0; i < mRunnables.size(); i++){
+                    if (mTimes.get(i) <= mNow){
+                        final Runnable runnable = mRunnables.remove(i);
+                        mTimes.remove(i);
+                        runnable.run();
+                        ran = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Connection that records the name of every operation started on it
+     */
+    private static class Connection {
+        final List<String> started = new ArrayList<String>();
+        int refusals = 0;
+    }
+
+    /**
+     * Operation with a name, completed by callbacks for its target
+     */
+    private static class TestOperation extends QueuedOperation<Connection> {
+        final String name;
+        final Object target;
+        Boolean result = null;
+
+        TestOperation(String name, Object target, int priority, int retries){
+            super(priority, TIMEOUT_MILLIS, retries);
+            this.name = name;
+            this.target = target;
+        }
+
+        @Override
+        protected boolean start(Connection connection){
+            if (connection.refusals > 0){
+                connection.refusals--;
+                return false;
+            }
+            connection.started.add(name);
+            return true;
+        }
+
+        @Override
+        protected boolean isCompletedBy(Object target){
+            return target == this.target;
+        }
+
+        @Override
+        protected void finish(boolean success){
+            result = success;
+        }
+    }
+
+    private ManualTimer mTimer;
+    private Connection mConnection;
+    private OperationQueue<Connection> mQueue;
+
+    @Before
+    public void setUp(){
+        mTimer = new ManualTimer();
+        mConnection = new Connection();
+        mQueue = new OperationQueue<Connection>(mTimer);
+        mQueue.setConnection(mConnection);
+    }
+
+    @Test
+    public void startsOneOperationAtATimeByPriority(){
+        final Object target = new Object();
+        final TestOperation read = new TestOperation("read", target, QueuedOperation.PRIORITY_BACKGROUND, 0);
+        final TestOperation frame = new TestOperation("frame", target, QueuedOperation.PRIORITY_ANIMATION, 0);
+        final TestOperation write = new TestOperation("write", target, QueuedOperation.PRIORITY_INTERACTIVE, 0);
+
+        mQueue.enqueueAll(Arrays.asList(read, frame, write));
+        assertEquals(Arrays.asList("write"), mConnection.started);
+
+        mQueue.onCallback(target, true);
+        mQueue.onCallback(target, true);
+        mQueue.onCallback(target, true);
+
+        assertEquals(Arrays.asList("write", "frame", "read"), mConnection.started);
+        assertTrue(write.result && frame.result && read.result);
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void refusedOperationKeepsItsPlaceAndRetries(){
+        final Object target = new Object();
+        final TestOperation first = new TestOperation("first", target, QueuedOperation.PRIORITY_INTERACTIVE, 0);
+        final TestOperation second = new TestOperation("second", target, QueuedOperation.PRIORITY_INTERACTIVE, 0);
+
+        mConnection.refusals = 1;
+        mQueue.enqueueAll(Arrays.asList(first, second));
+        assertTrue(mConnection.started.isEmpty());
+        assertNull(first.result);
+
+        mTimer.advance(20);
+        assertEquals(Arrays.asList("first"), mConnection.started);
+
+        mQueue.onCallback(target, true);
+        assertTrue(first.result);
+        assertEquals(Arrays.asList("first", "second"), mConnection.started);
+    }
+
+    @Test
+    public void retriesFailuresUntilOutOfRetries(){
+        final Object target = new Object();
+        final TestOperation write = new TestOperation("write", target, QueuedOperation.PRIORITY_INTERACTIVE, 1);
+
+        mQueue.enqueue(write);
+        mQueue.onCallback(target, false);
+        assertNull(write.result);
+        assertEquals(Arrays.asList("write", "write"), mConnection.started);
+
+        mQueue.onCallback(target, false);
+        assertEquals(Boolean.FALSE, write.result);
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void dropsTheLateCallbackOfATimedOutAttempt(){
+        final Object target = new Object();
+        final TestOperation write = new TestOperation("write", target, QueuedOperation.PRIORITY_INTERACTIVE, 1);
+
+        mQueue.enqueue(write);
+        mTimer.advance(TIMEOUT_MILLIS);
+        assertEquals(Arrays.asList("write", "write"), mConnection.started);
+
+        // Answers the first attempt, the retry is still waiting for its own callback
+        mQueue.onCallback(target, true);
+        assertNull(write.result);
+
+        mQueue.onCallback(target, true);
+        assertTrue(write.result);
+    }
+
+    @Test
+    public void forgetsATimedOutAttemptWhoseCallbackNeverCame(){
+        final Object target = new Object();
+        final TestOperation lost = new TestOperation("lost", target, QueuedOperation.PRIORITY_INTERACTIVE, 0);
+        final TestOperation next = new TestOperation("next", target, QueuedOperation.PRIORITY_INTERACTIVE, 0);
+
+        mQueue.enqueue(lost);
+        mTimer.advance(TIMEOUT_MILLIS);
+        assertEquals(Boolean.FALSE, lost.result);
+
+        // Another timeout period without the late callback, it is not coming anymore
+        mTimer.advance(TIMEOUT_MILLIS);
+
+        mQueue.enqueue(next);
+        mQueue.onCallback(target, true);
+        assertTrue(next.result);
+    }
+
+    @Test
+    public void failsStuckOperationsWithoutWedgingTheLink(){
+        final Object stuck = new Object(), other = new Object();
+        final TestOperation first = new TestOperation("first", stuck, QueuedOperation.PRIORITY_INTERACTIVE, 0);
+        final TestOperation second = new TestOperation("second", other, QueuedOperation.PRIORITY_INTERACTIVE, 0);
+
+        mQueue.enqueueAll(Arrays.asList(first, second));
+        mTimer.advance(TIMEOUT_MILLIS);
+
+        assertEquals(Boolean.FALSE, first.result);
+        assertEquals(Arrays.asList("first", "second"), mConnection.started);
+
+        mQueue.onCallback(other, true);
+        assertTrue(second.result);
+    }
+
+    @Test
+    public void clearFailsEverything(){
+        final Object target = new Object();
+        final List<TestOperation> operations = new ArrayList<TestOperation>();
+        for (int i = 0; i < 3; i++){
+            operations.add(new TestOperation("op" + i, target, QueuedOperation.PRIORITY_ANIMATION, 2));
+        }
+
+        mQueue.enqueueAll(operations);
+        mQueue.clear();
+
+        for (TestOperation operation : operations){
+            assertEquals(Boolean.FALSE, operation.result);
+        }
+        assertEquals(0, mQueue.size());
+    }
+}